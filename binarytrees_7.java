@@ -7,9 +7,17 @@
  * *reset*
  */
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.StringJoiner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class binarytrees_7 {
 
@@ -22,6 +30,17 @@ public class binarytrees_7 {
         if (0 < args.length) {
             n = Integer.parseInt(args[0]);
         }
+        String metricsJsonPath = null;
+        for (int i = 1; i < args.length; i++) {
+            if ("--metrics".equals(args[i])) {
+                DepthMetrics.enabled = true;
+            } else if (args[i].startsWith("--metrics-json=")) {
+                DepthMetrics.enabled = true;
+                metricsJsonPath = args[i].substring("--metrics-json=".length());
+            } else {
+                throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
 
         final int maxDepth = n < (MIN_DEPTH + 2) ? MIN_DEPTH + 2 : n;
         final int stretchDepth = maxDepth + 1;
@@ -32,6 +51,7 @@ public class binarytrees_7 {
         final TreeNode longLivedTree = bottomUpTree(maxDepth);
 
         final String[] results = new String[(maxDepth - MIN_DEPTH) / 2 + 1];
+        final DepthMetrics[] depthMetrics = new DepthMetrics[results.length];
 
         for (int d = MIN_DEPTH; d <= maxDepth; d += 2) {
             final int depth = d;
@@ -39,10 +59,16 @@ public class binarytrees_7 {
                 int check = 0;
 
                 final int iterations = 1 << (maxDepth - depth + MIN_DEPTH);
+                final DepthMetrics metrics = new DepthMetrics(depth, iterations);
+                metrics.begin();
+                final long allocationMark = metrics.allocationMark();
                 for (int i = 1; i <= iterations; ++i) {
                     final TreeNode treeNode1 = bottomUpTree(depth);
                     check += treeNode1.itemCheck();
                 }
+                metrics.addAllocatedSince(allocationMark);
+                metrics.finish();
+                depthMetrics[(depth - MIN_DEPTH) / 2] = metrics;
                 results[(depth - MIN_DEPTH) / 2] =
                         iterations + "\t trees of depth " + depth + "\t check: " + check;
             });
@@ -57,6 +83,8 @@ public class binarytrees_7 {
 
         System.out.println("long lived tree of depth " + maxDepth +
                 "\t check: " + longLivedTree.itemCheck());
+
+        DepthMetrics.report(depthMetrics, metricsJsonPath);
     }
 
     private static TreeNode bottomUpTree(final int depth) {
@@ -66,6 +94,131 @@ public class binarytrees_7 {
         return new TreeNode();
     }
 
+    /**
+     * Opt-in memory pressure metrics of a depth bucket. Allocated bytes are
+     * summed over all threads working on the bucket. Gc time is the time
+     * spent in collections while the bucket was running, so buckets running
+     * at the same time share their gc pauses.
+     */
+    private static final class DepthMetrics {
+
+        private static boolean enabled;
+
+        private final int depth;
+        private final int iterations;
+        private final LongAdder allocatedBytes = new LongAdder();
+        private long startNanos, endNanos, startGcMillis, endGcMillis;
+
+        private DepthMetrics(final int depth, final int iterations) {
+            this.depth = depth;
+            this.iterations = iterations;
+        }
+
+        private void begin() {
+            if (enabled) {
+                startNanos = System.nanoTime();
+                startGcMillis = gcMillis();
+            }
+        }
+
+        private void finish() {
+            if (enabled) {
+                endGcMillis = gcMillis();
+                endNanos = System.nanoTime();
+            }
+        }
+
+        private long allocationMark() {
+            return enabled ? threadBean().getCurrentThreadAllocatedBytes() : 0;
+        }
+
+        private void addAllocatedSince(final long mark) {
+            if (enabled) {
+                allocatedBytes.add(threadBean().getCurrentThreadAllocatedBytes() - mark);
+            }
+        }
+
+        private long nodes() {
+            return iterations * ((1L << (depth + 1)) - 1);
+        }
+
+        private double nodesPerSecond() {
+            return nodes() * 1e9 / Math.max(1, endNanos - startNanos);
+        }
+
+        private String toText() {
+            return String.format("depth %2d: %,d nodes, %,d bytes allocated " +
+                            "(%.1f per node), gc %,d ms, %,.0f nodes/s",
+                    depth, nodes(), allocatedBytes.sum(),
+                    (double) allocatedBytes.sum() / nodes(),
+                    endGcMillis - startGcMillis, nodesPerSecond());
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT, "{\"depth\": %d, \"iterations\": %d, " +
+                            "\"nodes\": %d, \"allocatedBytes\": %d, \"gcMillis\": %d, " +
+                            "\"wallNanos\": %d, \"nodesPerSecond\": %.0f}",
+                    depth, iterations, nodes(), allocatedBytes.sum(),
+                    endGcMillis - startGcMillis, endNanos - startNanos,
+                    nodesPerSecond());
+        }
+
+        private static com.sun.management.ThreadMXBean threadBean() {
+            return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+
+        private static long gcMillis() {
+            long gcMillis = 0;
+            for (final var gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcMillis += Math.max(0, gcBean.getCollectionTime());
+            }
+            return gcMillis;
+        }
+
+        // writes to stderr if no json file is given
+        private static void report(final DepthMetrics[] buckets,
+                                   final String jsonPath) throws IOException {
+            if (!enabled) {
+                return;
+            }
+            final var gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+            final var heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+            if (jsonPath == null) {
+                for (final DepthMetrics bucket : buckets) {
+                    System.err.println(bucket.toText());
+                }
+                for (final var gcBean : gcBeans) {
+                    System.err.printf("%s: %,d collections, %,d ms%n", gcBean.getName(),
+                            gcBean.getCollectionCount(), gcBean.getCollectionTime());
+                }
+                for (final var pool : heapPools) {
+                    System.err.printf("%s: peak %,d bytes used%n",
+                            pool.getName(), pool.getPeakUsage().getUsed());
+                }
+                return;
+            }
+            final StringJoiner depths = new StringJoiner(",\n    ", "[\n    ", "\n  ]");
+            for (final DepthMetrics bucket : buckets) {
+                depths.add(bucket.toJson());
+            }
+            final StringJoiner collectors = new StringJoiner(",\n    ", "[\n    ", "\n  ]");
+            for (final var gcBean : gcBeans) {
+                collectors.add(String.format("{\"name\": \"%s\", \"count\": %d, \"millis\": %d}",
+                        gcBean.getName(), gcBean.getCollectionCount(),
+                        gcBean.getCollectionTime()));
+            }
+            final StringJoiner pools = new StringJoiner(",\n    ", "[\n    ", "\n  ]");
+            for (final var pool : heapPools) {
+                pools.add(String.format("{\"name\": \"%s\", \"peakUsedBytes\": %d}",
+                        pool.getName(), pool.getPeakUsage().getUsed()));
+            }
+            Files.writeString(Path.of(jsonPath), "{\n  \"depths\": " + depths +
+                    ",\n  \"collectors\": " + collectors +
+                    ",\n  \"heapPools\": " + pools + "\n}\n");
+        }
+    }
+
     private static final class TreeNode {
 
         private final TreeNode left;
@@ -0,0 +1,371 @@
+/**
+ * The Computer Language Benchmarks Game
+ * https://salsa.debian.org/benchmarksgame-team/benchmarksgame/
+ * <p>
+ * based on "binary-trees Java #7 program" (I/O and parallelism)
+ * stores tree nodes in reusable per-worker int[] slabs instead of objects
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+public class binarytrees_slab {
+
+    private static final int MIN_DEPTH = 4;
+    private static final int CHUNKS_PER_CPU = 4;
+    private static final long MIN_CHUNK_NODES = 1L << 16;
+    private static final int FORK_MIN_DEPTH = 12;
+    private static final int COMPARISON_ROUNDS = 3;
+
+    /**
+     * FULL traverses every tree. TRUSTED_SHAPE still builds every tree, but
+     * takes its check from the depth it was built with, as a full tree of
+     * depth d always has 2^(d+1)-1 nodes. VERIFY traverses every tree and
+     * fails if the traversal disagrees with the depth based check.
+     */
+    private enum CheckMode {FULL, TRUSTED_SHAPE, VERIFY}
+
+    private static CheckMode checkMode = CheckMode.FULL;
+
+    /**
+     * FORK_JOIN splits every depth recursively on the fork-join pool. FIXED
+     * runs the chunks on a fixed pool of platform threads, like the executor
+     * of binary-trees Java #7 program. VIRTUAL runs every chunk on its own
+     * virtual thread.
+     */
+    private enum Scheduler {
+        FORK_JOIN("fork-join"), FIXED("fixed"), VIRTUAL("virtual");
+
+        private final String label;
+
+        Scheduler(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final ThreadLocal<Slab> WORKER_SLABS =
+            ThreadLocal.withInitial(() -> new Slab(MIN_DEPTH));
+
+    public static void main(final String[] args) {
+        int n = 0;
+        if (0 < args.length) {
+            n = Integer.parseInt(args[0]);
+        }
+        Scheduler scheduler = Scheduler.FORK_JOIN;
+        boolean compareSchedulers = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--trusted-shape" -> checkMode = CheckMode.TRUSTED_SHAPE;
+                case "--verify" -> checkMode = CheckMode.VERIFY;
+                case "--scheduler=fork-join" -> scheduler = Scheduler.FORK_JOIN;
+                case "--scheduler=fixed" -> scheduler = Scheduler.FIXED;
+                case "--scheduler=virtual" -> scheduler = Scheduler.VIRTUAL;
+                case "--compare-schedulers" -> compareSchedulers = true;
+                default -> throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+
+        final int maxDepth = Math.max(n, (MIN_DEPTH + 2));
+        final int stretchDepth = maxDepth + 1;
+
+        final String[] results = new String[(maxDepth - MIN_DEPTH) / 2 + 1];
+
+        try (var forkJoinPool = new ForkJoinPool()) {
+            if (compareSchedulers) {
+                reportSchedulers(forkJoinPool, maxDepth);
+            }
+
+            final int forkLevels = forkLevels(forkJoinPool.getParallelism());
+            // stretch tree is checked while workers already start on depths
+            final ForkJoinTask<Integer> stretchCheck = forkJoinPool.submit(() -> {
+                final Slab stretchSlab = new Slab(stretchDepth);
+                final int stretchTree = stretchSlab.allocate(stretchDepth);
+                new ParallelFill(stretchSlab, stretchTree, stretchDepth, forkLevels).invoke();
+                return parallelItemCheck(forkJoinPool,
+                        stretchSlab, stretchTree, stretchDepth, forkLevels);
+            });
+            final Slab longLivedSlab = new Slab(maxDepth);
+            final int longLivedTree = longLivedSlab.allocate(maxDepth);
+            final ForkJoinTask<Void> longLivedFill = forkJoinPool.submit(
+                    new ParallelFill(longLivedSlab, longLivedTree, maxDepth, forkLevels));
+
+            final int[] checks = depthChecks(forkJoinPool, scheduler, maxDepth);
+
+            System.out.println("stretch tree of depth " + stretchDepth + "\t check: "
+                    + stretchCheck.join());
+
+            for (int d = MIN_DEPTH; d <= maxDepth; d += 2) {
+                final int iterations = 1 << (maxDepth - d + MIN_DEPTH);
+                results[(d - MIN_DEPTH) / 2] = iterations + "\t trees of depth " + d
+                        + "\t check: " + checks[(d - MIN_DEPTH) / 2];
+            }
+
+            for (final String str : results) {
+                System.out.println(str);
+            }
+
+            longLivedFill.join();
+            System.out.println("long lived tree of depth " + maxDepth + "\t check: "
+                    + parallelItemCheck(forkJoinPool,
+                    longLivedSlab, longLivedTree, maxDepth, forkLevels));
+        }
+    }
+
+    // a virtual thread runs a single chunk, so it gets a fresh slab
+    private static int checkTrees(final int depth, final int iterations) {
+        final Slab slab = WORKER_SLABS.get();
+        int check = 0;
+        for (int i = 1; i <= iterations; ++i) {
+            slab.reset(depth);
+            final int treeNode1 = slab.bottomUpTree(depth);
+            check += itemCheck(slab, treeNode1, depth);
+        }
+        return check;
+    }
+
+    private static int itemCheck(final Slab slab, final int node, final int depth) {
+        return checkMode == CheckMode.TRUSTED_SHAPE ?
+                fullTreeCheck(depth) : verified(slab.itemCheck(node), depth);
+    }
+
+    private static int parallelItemCheck(final ForkJoinPool forkJoinPool,
+                                         final Slab slab, final int node, final int depth,
+                                         final int forkLevels) {
+        return checkMode == CheckMode.TRUSTED_SHAPE ? fullTreeCheck(depth) :
+                verified(forkJoinPool.invoke(new ParallelCheck(slab, node, depth, forkLevels)), depth);
+    }
+
+    private static int fullTreeCheck(final int depth) {
+        return (1 << (depth + 1)) - 1;
+    }
+
+    private static int verified(final int check, final int depth) {
+        if (checkMode == CheckMode.VERIFY && check != fullTreeCheck(depth)) {
+            throw new IllegalStateException("check " + check + " of tree of depth "
+                    + depth + " differs from expected " + fullTreeCheck(depth));
+        }
+        return check;
+    }
+
+    // forks enough top levels to give every cpu a few subtrees to work on
+    private static int forkLevels(final int parallelism) {
+        return 32 - Integer.numberOfLeadingZeros(parallelism - 1) + 2;
+    }
+
+    private static int[] depthChecks(final ForkJoinPool forkJoinPool,
+                                     final Scheduler scheduler, final int maxDepth) {
+        final int parallelism = forkJoinPool.getParallelism();
+        if (scheduler == Scheduler.FORK_JOIN) {
+            final List<ForkJoinTask<Integer>> checks = new ArrayList<>();
+            for (int d = MIN_DEPTH; d <= maxDepth; d += 2) {
+                final int iterations = 1 << (maxDepth - d + MIN_DEPTH);
+                checks.add(forkJoinPool.submit(new TreesCheck(d, iterations,
+                        chunkIterations(d, iterations, parallelism))));
+            }
+            return checks.stream().mapToInt(ForkJoinTask::join).toArray();
+        }
+        try (var executorService = scheduler == Scheduler.FIXED ?
+                Executors.newFixedThreadPool(parallelism) :
+                Executors.newVirtualThreadPerTaskExecutor()) {
+            final List<List<CompletableFuture<Integer>>> checks = new ArrayList<>();
+            for (int d = MIN_DEPTH; d <= maxDepth; d += 2) {
+                final int depth = d;
+                final int iterations = 1 << (maxDepth - d + MIN_DEPTH);
+                final int chunkIterations = chunkIterations(d, iterations, parallelism);
+                final List<CompletableFuture<Integer>> chunkChecks = new ArrayList<>();
+                for (int done = 0; done < iterations; done += chunkIterations) {
+                    final int chunk = Math.min(chunkIterations, iterations - done);
+                    chunkChecks.add(CompletableFuture.supplyAsync(
+                            () -> checkTrees(depth, chunk), executorService));
+                }
+                checks.add(chunkChecks);
+            }
+            return checks.stream().mapToInt(chunkChecks -> chunkChecks.stream()
+                    .mapToInt(CompletableFuture::join).sum()).toArray();
+        }
+    }
+
+    // runs all depths with every scheduler a few times, so later rounds show
+    // timings after warm-up; process cpu time includes gc threads
+    private static void reportSchedulers(final ForkJoinPool forkJoinPool,
+                                         final int maxDepth) {
+        final var osBean = (com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean();
+        int[] expectedChecks = null;
+        for (int round = 1; round <= COMPARISON_ROUNDS; round++) {
+            for (final Scheduler scheduler : Scheduler.values()) {
+                final long wallStart = System.nanoTime();
+                final long cpuStart = osBean.getProcessCpuTime();
+                final int[] checks = depthChecks(forkJoinPool, scheduler, maxDepth);
+                final long cpuTime = osBean.getProcessCpuTime() - cpuStart;
+                final long wallTime = System.nanoTime() - wallStart;
+                if (expectedChecks == null) {
+                    expectedChecks = checks;
+                } else if (!Arrays.equals(expectedChecks, checks)) {
+                    throw new IllegalStateException(
+                            scheduler.label + " scheduler computed different checks");
+                }
+                System.err.printf("round %d, %-9s scheduler: wall %6d ms, cpu %6d ms%n",
+                        round, scheduler.label, wallTime / 1_000_000, cpuTime / 1_000_000);
+            }
+        }
+    }
+
+    // every depth bucket builds about the same number of nodes in total,
+    // so each one is split into a few chunks per cpu of similar node count
+    private static int chunkIterations(final int depth, final int iterations,
+                                       final int parallelism) {
+        final long treeNodes = (1L << (depth + 1)) - 1;
+        final long chunkNodes = Math.max(MIN_CHUNK_NODES,
+                treeNodes * iterations / ((long) parallelism * CHUNKS_PER_CPU));
+        return (int) Math.max(1, Math.min(iterations, chunkNodes / treeNodes));
+    }
+
+    @SuppressWarnings("serial")
+    // fork/join tasks are never serialized
+    private static final class TreesCheck extends RecursiveTask<Integer> {
+        private final int depth, iterations, chunkIterations;
+
+        private TreesCheck(int depth, int iterations, int chunkIterations) {
+            this.depth = depth;
+            this.iterations = iterations;
+            this.chunkIterations = chunkIterations;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (iterations <= chunkIterations) {
+                return checkTrees(depth, iterations);
+            }
+            final int half = iterations / 2;
+            final var first = new TreesCheck(depth, half, chunkIterations).fork();
+            final int secondCheck =
+                    new TreesCheck(depth, iterations - half, chunkIterations).compute();
+            return first.join() + secondCheck;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    // fork/join tasks are never serialized
+    private static final class ParallelFill extends RecursiveAction {
+        private final Slab slab;
+        private final int node, depth, forkLevels;
+
+        private ParallelFill(Slab slab, int node, int depth, int forkLevels) {
+            this.slab = slab;
+            this.node = node;
+            this.depth = depth;
+            this.forkLevels = forkLevels;
+        }
+
+        @Override
+        protected void compute() {
+            if (forkLevels == 0 || depth <= FORK_MIN_DEPTH) {
+                slab.fillTree(node, depth);
+                return;
+            }
+            final int right = slab.fillNode(node, depth);
+            invokeAll(new ParallelFill(slab, node + 1, depth - 1, forkLevels - 1),
+                    new ParallelFill(slab, right, depth - 1, forkLevels - 1));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    // fork/join tasks are never serialized
+    private static final class ParallelCheck extends RecursiveTask<Integer> {
+        private final Slab slab;
+        private final int node, depth, forkLevels;
+
+        private ParallelCheck(Slab slab, int node, int depth, int forkLevels) {
+            this.slab = slab;
+            this.node = node;
+            this.depth = depth;
+            this.forkLevels = forkLevels;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (forkLevels == 0 || depth <= FORK_MIN_DEPTH) {
+                return slab.itemCheck(node);
+            }
+            final var left = new ParallelCheck(
+                    slab, node + 1, depth - 1, forkLevels - 1).fork();
+            final int rightCheck = new ParallelCheck(
+                    slab, slab.rightChildren[node], depth - 1, forkLevels - 1).compute();
+            return 1 + left.join() + rightCheck;
+        }
+    }
+
+    /**
+     * Nodes are laid out in pre-order, so the left child of a non-leaf node
+     * is always the next slot and only the right child index is stored.
+     * The right child follows the whole left subtree, so its index is known
+     * before any of the subtrees is filled.
+     */
+    private static final class Slab {
+
+        private static final int LEAF = -1;
+
+        private int[] rightChildren;
+        private int size;
+
+        private Slab(final int depth) {
+            rightChildren = new int[nodesCount(depth)];
+        }
+
+        private static int nodesCount(final int depth) {
+            return (1 << (depth + 1)) - 1;
+        }
+
+        private void reset(final int depth) {
+            size = 0;
+            final int required = nodesCount(depth);
+            if (rightChildren.length < required) {
+                rightChildren = new int[required];
+            }
+        }
+
+        private int bottomUpTree(final int depth) {
+            final int node = allocate(depth);
+            fillTree(node, depth);
+            return node;
+        }
+
+        private int allocate(final int depth) {
+            final int node = size;
+            size += nodesCount(depth);
+            return node;
+        }
+
+        // disjoint subtrees can be filled independently by different threads
+        private void fillTree(final int node, final int depth) {
+            final int right = fillNode(node, depth);
+            if (LEAF != right) {
+                fillTree(node + 1, depth - 1);
+                fillTree(right, depth - 1);
+            }
+        }
+
+        private int fillNode(final int node, final int depth) {
+            final int right = 0 < depth ? node + nodesCount(depth - 1) + 1 : LEAF;
+            rightChildren[node] = right;
+            return right;
+        }
+
+        private int itemCheck(final int node) {
+            final int right = rightChildren[node];
+            if (LEAF == right) {
+                return 1;
+            }
+            return 1 + itemCheck(node + 1) + itemCheck(right);
+        }
+    }
+}
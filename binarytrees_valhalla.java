@@ -6,51 +6,350 @@
  * uses tree node implementation from "binary-trees C# .NET #6 program"
  */
 
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringJoiner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 public class binarytrees_valhalla {
 
     private static final int MIN_DEPTH = 4;
+    private static final int CHUNKS_PER_CPU = 4;
+    private static final long MIN_CHUNK_NODES = 1L << 16;
+    private static final int FORK_MIN_DEPTH = 12;
 
-    public static void main(final String[] args) {
+    /**
+     * FULL traverses every tree. TRUSTED_SHAPE still builds every tree, but
+     * takes its check from the depth it was built with, as a full tree of
+     * depth d always has 2^(d+1)-1 nodes. VERIFY traverses every tree and
+     * fails if the traversal disagrees with the depth based check.
+     */
+    private enum CheckMode {FULL, TRUSTED_SHAPE, VERIFY}
+
+    private static CheckMode checkMode = CheckMode.FULL;
+
+    public static void main(final String[] args) throws IOException {
         int n = 0;
         if (0 < args.length) {
             n = Integer.parseInt(args[0]);
         }
+        String metricsJsonPath = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--trusted-shape" -> checkMode = CheckMode.TRUSTED_SHAPE;
+                case "--verify" -> checkMode = CheckMode.VERIFY;
+                case "--metrics" -> DepthMetrics.enabled = true;
+                default -> {
+                    if (!args[i].startsWith("--metrics-json=")) {
+                        throw new IllegalArgumentException("unknown option: " + args[i]);
+                    }
+                    DepthMetrics.enabled = true;
+                    metricsJsonPath = args[i].substring("--metrics-json=".length());
+                }
+            }
+        }
 
         final int maxDepth = Math.max(n, (MIN_DEPTH + 2));
         final int stretchDepth = maxDepth + 1;
 
-        System.out.println("stretch tree of depth " + stretchDepth + "\t check: "
-                + TreeNode.create(stretchDepth).itemCheck());
+        final String[] results = new String[(maxDepth - MIN_DEPTH) / 2 + 1];
+        final DepthMetrics[] depthMetrics = new DepthMetrics[results.length];
 
-        final TreeNode longLivedTree = TreeNode.create(maxDepth);
+        try (var forkJoinPool = new ForkJoinPool()) {
+            final int forkLevels = forkLevels(forkJoinPool.getParallelism());
+            // stretch tree is checked while workers already start on depths
+            final ForkJoinTask<Integer> stretchCheck = forkJoinPool.submit(() ->
+                    parallelItemCheck(forkJoinPool,
+                            new ParallelCreate(stretchDepth, forkLevels).invoke(),
+                            stretchDepth, forkLevels));
+            final ForkJoinTask<Next> longLivedTree =
+                    forkJoinPool.submit(new ParallelCreate(maxDepth, forkLevels));
 
-        final String[] results = new String[(maxDepth - MIN_DEPTH) / 2 + 1];
+            final List<ForkJoinTask<Integer>> checks = new ArrayList<>();
+            for (int d = MIN_DEPTH; d <= maxDepth; d += 2) {
+                final int iterations = 1 << (maxDepth - d + MIN_DEPTH);
+                final DepthMetrics metrics = new DepthMetrics(d, iterations);
+                final TreesCheck treesCheck = new TreesCheck(d, iterations,
+                        chunkIterations(d, iterations, forkJoinPool.getParallelism()), metrics);
+                depthMetrics[(d - MIN_DEPTH) / 2] = metrics;
+                checks.add(forkJoinPool.submit(() -> {
+                    metrics.begin();
+                    final int check = treesCheck.invoke();
+                    metrics.finish();
+                    return check;
+                }));
+            }
+
+            System.out.println("stretch tree of depth " + stretchDepth + "\t check: "
+                    + stretchCheck.join());
 
-        try (var executorService = Executors.newWorkStealingPool()) {
             for (int d = MIN_DEPTH; d <= maxDepth; d += 2) {
-                final int depth = d;
-                executorService.execute(() -> {
-                    int check = 0;
-
-                    final int iterations = 1 << (maxDepth - depth + MIN_DEPTH);
-                    for (int i = 1; i <= iterations; ++i) {
-                        final TreeNode treeNode1 = TreeNode.create(depth);
-                        check += treeNode1.itemCheck();
-                    }
-                    results[(depth - MIN_DEPTH) / 2] =
-                            iterations + "\t trees of depth " + depth + "\t check: " + check;
-                });
+                final int iterations = 1 << (maxDepth - d + MIN_DEPTH);
+                results[(d - MIN_DEPTH) / 2] = iterations + "\t trees of depth " + d
+                        + "\t check: " + checks.get((d - MIN_DEPTH) / 2).join();
+            }
+
+            for (final String str : results) {
+                System.out.println(str);
+            }
+
+            System.out.println("long lived tree of depth " + maxDepth + "\t check: "
+                    + parallelItemCheck(forkJoinPool, longLivedTree.join(), maxDepth, forkLevels));
+        }
+
+        DepthMetrics.report(depthMetrics, metricsJsonPath);
+    }
+
+    private static int itemCheck(final TreeNode tree, final int depth) {
+        return checkMode == CheckMode.TRUSTED_SHAPE ?
+                fullTreeCheck(depth) : verified(tree.itemCheck(), depth);
+    }
+
+    private static int parallelItemCheck(final ForkJoinPool forkJoinPool,
+                                         final Next next, final int depth,
+                                         final int forkLevels) {
+        return checkMode == CheckMode.TRUSTED_SHAPE ? fullTreeCheck(depth) :
+                verified(forkJoinPool.invoke(new ParallelCheck(next, depth, forkLevels)), depth);
+    }
+
+    private static int fullTreeCheck(final int depth) {
+        return (1 << (depth + 1)) - 1;
+    }
+
+    private static int verified(final int check, final int depth) {
+        if (checkMode == CheckMode.VERIFY && check != fullTreeCheck(depth)) {
+            throw new IllegalStateException("check " + check + " of tree of depth "
+                    + depth + " differs from expected " + fullTreeCheck(depth));
+        }
+        return check;
+    }
+
+    // forks enough top levels to give every cpu a few subtrees to work on
+    private static int forkLevels(final int parallelism) {
+        return 32 - Integer.numberOfLeadingZeros(parallelism - 1) + 2;
+    }
+
+    // every depth bucket builds about the same number of nodes in total,
+    // so each one is split into a few chunks per cpu of similar node count
+    private static int chunkIterations(final int depth, final int iterations,
+                                       final int parallelism) {
+        final long treeNodes = (1L << (depth + 1)) - 1;
+        final long chunkNodes = Math.max(MIN_CHUNK_NODES,
+                treeNodes * iterations / ((long) parallelism * CHUNKS_PER_CPU));
+        return (int) Math.max(1, Math.min(iterations, chunkNodes / treeNodes));
+    }
+
+    @SuppressWarnings("serial")
+    // fork/join tasks are never serialized
+    private static final class TreesCheck extends RecursiveTask<Integer> {
+        private final int depth, iterations, chunkIterations;
+        private final DepthMetrics metrics;
+
+        private TreesCheck(int depth, int iterations, int chunkIterations,
+                           DepthMetrics metrics) {
+            this.depth = depth;
+            this.iterations = iterations;
+            this.chunkIterations = chunkIterations;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (iterations <= chunkIterations) {
+                final long allocationMark = metrics.allocationMark();
+                int check = 0;
+                for (int i = 1; i <= iterations; ++i) {
+                    final TreeNode treeNode1 = TreeNode.create(depth);
+                    check += itemCheck(treeNode1, depth);
+                }
+                metrics.addAllocatedSince(allocationMark);
+                return check;
+            }
+            final int half = iterations / 2;
+            final var first = new TreesCheck(depth, half, chunkIterations, metrics).fork();
+            final int secondCheck = new TreesCheck(
+                    depth, iterations - half, chunkIterations, metrics).compute();
+            return first.join() + secondCheck;
+        }
+    }
+
+    /**
+     * Opt-in memory pressure metrics of a depth bucket. Allocated bytes are
+     * summed over all threads working on the bucket. Gc time is the time
+     * spent in collections while the bucket was running, so buckets running
+     * at the same time share their gc pauses.
+     */
+    private static final class DepthMetrics {
+
+        private static boolean enabled;
+
+        private final int depth;
+        private final int iterations;
+        private final LongAdder allocatedBytes = new LongAdder();
+        private long startNanos, endNanos, startGcMillis, endGcMillis;
+
+        private DepthMetrics(final int depth, final int iterations) {
+            this.depth = depth;
+            this.iterations = iterations;
+        }
+
+        private void begin() {
+            if (enabled) {
+                startNanos = System.nanoTime();
+                startGcMillis = gcMillis();
+            }
+        }
+
+        private void finish() {
+            if (enabled) {
+                endGcMillis = gcMillis();
+                endNanos = System.nanoTime();
             }
         }
 
-        for (final String str : results) {
-            System.out.println(str);
+        private long allocationMark() {
+            return enabled ? threadBean().getCurrentThreadAllocatedBytes() : 0;
+        }
+
+        private void addAllocatedSince(final long mark) {
+            if (enabled) {
+                allocatedBytes.add(threadBean().getCurrentThreadAllocatedBytes() - mark);
+            }
+        }
+
+        private long nodes() {
+            return iterations * ((1L << (depth + 1)) - 1);
+        }
+
+        private double nodesPerSecond() {
+            return nodes() * 1e9 / Math.max(1, endNanos - startNanos);
         }
 
-        System.out.println("long lived tree of depth " + maxDepth +
-                "\t check: " + longLivedTree.itemCheck());
+        private String toText() {
+            return String.format("depth %2d: %,d nodes, %,d bytes allocated " +
+                            "(%.1f per node), gc %,d ms, %,.0f nodes/s",
+                    depth, nodes(), allocatedBytes.sum(),
+                    (double) allocatedBytes.sum() / nodes(),
+                    endGcMillis - startGcMillis, nodesPerSecond());
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT, "{\"depth\": %d, \"iterations\": %d, " +
+                            "\"nodes\": %d, \"allocatedBytes\": %d, \"gcMillis\": %d, " +
+                            "\"wallNanos\": %d, \"nodesPerSecond\": %.0f}",
+                    depth, iterations, nodes(), allocatedBytes.sum(),
+                    endGcMillis - startGcMillis, endNanos - startNanos,
+                    nodesPerSecond());
+        }
+
+        private static com.sun.management.ThreadMXBean threadBean() {
+            return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+
+        private static long gcMillis() {
+            long gcMillis = 0;
+            for (final var gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcMillis += Math.max(0, gcBean.getCollectionTime());
+            }
+            return gcMillis;
+        }
+
+        // writes to stderr if no json file is given
+        private static void report(final DepthMetrics[] buckets,
+                                   final String jsonPath) throws IOException {
+            if (!enabled) {
+                return;
+            }
+            final var gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+            final var heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+            if (jsonPath == null) {
+                for (final DepthMetrics bucket : buckets) {
+                    System.err.println(bucket.toText());
+                }
+                for (final var gcBean : gcBeans) {
+                    System.err.printf("%s: %,d collections, %,d ms%n", gcBean.getName(),
+                            gcBean.getCollectionCount(), gcBean.getCollectionTime());
+                }
+                for (final var pool : heapPools) {
+                    System.err.printf("%s: peak %,d bytes used%n",
+                            pool.getName(), pool.getPeakUsage().getUsed());
+                }
+                return;
+            }
+            final StringJoiner depths = new StringJoiner(",\n    ", "[\n    ", "\n  ]");
+            for (final DepthMetrics bucket : buckets) {
+                depths.add(bucket.toJson());
+            }
+            final StringJoiner collectors = new StringJoiner(",\n    ", "[\n    ", "\n  ]");
+            for (final var gcBean : gcBeans) {
+                collectors.add(String.format("{\"name\": \"%s\", \"count\": %d, \"millis\": %d}",
+                        gcBean.getName(), gcBean.getCollectionCount(),
+                        gcBean.getCollectionTime()));
+            }
+            final StringJoiner pools = new StringJoiner(",\n    ", "[\n    ", "\n  ]");
+            for (final var pool : heapPools) {
+                pools.add(String.format("{\"name\": \"%s\", \"peakUsedBytes\": %d}",
+                        pool.getName(), pool.getPeakUsage().getUsed()));
+            }
+            Files.writeString(Path.of(jsonPath), "{\n  \"depths\": " + depths +
+                    ",\n  \"collectors\": " + collectors +
+                    ",\n  \"heapPools\": " + pools + "\n}\n");
+        }
+    }
+
+    @SuppressWarnings("serial")
+    // fork/join tasks are never serialized
+    private static final class ParallelCreate extends RecursiveTask<Next> {
+        private final int depth, forkLevels;
+
+        private ParallelCreate(int depth, int forkLevels) {
+            this.depth = depth;
+            this.forkLevels = forkLevels;
+        }
+
+        @Override
+        protected Next compute() {
+            if (forkLevels == 0 || depth <= FORK_MIN_DEPTH) {
+                return TreeNode.create(depth).next;
+            }
+            final var left = new ParallelCreate(depth - 1, forkLevels - 1).fork();
+            final Next right = new ParallelCreate(depth - 1, forkLevels - 1).compute();
+            return new Next(new TreeNode(left.join()), new TreeNode(right));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    // fork/join tasks are never serialized
+    private static final class ParallelCheck extends RecursiveTask<Integer> {
+        private final Next next;
+        private final int depth, forkLevels;
+
+        private ParallelCheck(Next next, int depth, int forkLevels) {
+            this.next = next;
+            this.depth = depth;
+            this.forkLevels = forkLevels;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (forkLevels == 0 || depth <= FORK_MIN_DEPTH) {
+                return new TreeNode(next).itemCheck();
+            }
+            final var left = new ParallelCheck(next.left.next, depth - 1, forkLevels - 1).fork();
+            final int rightCheck =
+                    new ParallelCheck(next.right.next, depth - 1, forkLevels - 1).compute();
+            return 1 + left.join() + rightCheck;
+        }
     }
 
     private static class Next {
@@ -70,6 +369,10 @@ public class binarytrees_valhalla {
             next = new Next(left, right);
         }
 
+        private TreeNode(Next next) {
+            this.next = next;
+        }
+
         private TreeNode() {
             next = null;
         }
@@ -6,42 +6,390 @@
  */
 
 import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.LongVector;
 import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 public class mandelbrot_panama_vector {
 
-    private static final VectorSpecies<Double> SPECIES =
-            DoubleVector.SPECIES_PREFERRED.length() <= 8 ?
-                    DoubleVector.SPECIES_PREFERRED : DoubleVector.SPECIES_512;
+    // set from options before Kernels is initialized, 0 bits means the
+    // preferred species if it has at most 8 lanes, otherwise SPECIES_512
+    private static int vectorBits = 0;
+    private static int interleave = 2;
 
-    private static final int LANES = SPECIES.length();
+    // set by --interior-shortcuts, see computeChunksVectorShortcuts
+    private static boolean interiorShortcuts = false;
 
-    private static final int LANES_LOG = Integer.numberOfTrailingZeros(LANES);
+    // set by --mirror, see Grid.withMirrorRows
+    private static boolean mirrorRows = false;
 
     public static void main(String[] args) throws IOException {
-        if ((LANES > 8) || (LANES != (1 << LANES_LOG))) {
+        // benchmarks game mandelbrot run
+        var sideLen = Integer.parseInt(args[0]);
+        var width = sideLen;
+        var height = sideLen;
+        var maxIter = 50;
+        double[] viewport = null;
+        var centerRe = -0.5;
+        var centerIm = 0.0;
+        var zoom = 1.0;
+        var centered = false;
+        Precision precision = null; // i.e. chosen by Precision.auto
+        var validateFloat = false;
+        String floatValidationPath = null;
+        var frames = 1;
+        var zoomStep = 1.0;
+        String framesDir = null;
+        var pixelBits = 1;
+        var probeKernels = false;
+        var probeKernel = false;
+        String kernelCachePath = null;
+        var tiled = false;
+        var streaming = false;
+        var maxTileSize = 512;
+        String tileStatsPath = null;
+        String mappedOutputPath = null;
+        for (var i = 1; i < args.length; i++) {
+            var option = args[i];
+            if (option.equals("--schedule=rows")) {
+                tiled = false;
+            } else if (option.equals("--schedule=tiles")) {
+                tiled = true;
+            } else if (option.startsWith("--width=")) {
+                width = Integer.parseInt(option.substring("--width=".length()));
+            } else if (option.startsWith("--height=")) {
+                height = Integer.parseInt(option.substring("--height=".length()));
+            } else if (option.startsWith("--max-iter=")) {
+                maxIter = Integer.parseInt(
+                        option.substring("--max-iter=".length()));
+            } else if (option.startsWith("--viewport=")) {
+                viewport = parseDoubles(
+                        option.substring("--viewport=".length()), 4);
+            } else if (option.startsWith("--center=")) {
+                var center = parseDoubles(
+                        option.substring("--center=".length()), 2);
+                centerRe = center[0];
+                centerIm = center[1];
+                centered = true;
+            } else if (option.startsWith("--zoom=")) {
+                zoom = Double.parseDouble(option.substring("--zoom=".length()));
+                centered = true;
+            } else if (option.equals("--kernel=auto")) {
+                precision = null;
+            } else if (option.startsWith("--kernel=")) {
+                precision = Precision.of(
+                        option.substring("--kernel=".length()));
+            } else if (option.equals("--validate-float")) {
+                validateFloat = true;
+            } else if (option.startsWith("--float-validation=")) {
+                floatValidationPath =
+                        option.substring("--float-validation=".length());
+            } else if (option.startsWith("--frames=")) {
+                frames = Integer.parseInt(option.substring("--frames=".length()));
+            } else if (option.startsWith("--zoom-step=")) {
+                zoomStep = Double.parseDouble(
+                        option.substring("--zoom-step=".length()));
+            } else if (option.startsWith("--frames-dir=")) {
+                framesDir = option.substring("--frames-dir=".length());
+            } else if (option.equals("--escape-counts=8")) {
+                pixelBits = 8;
+            } else if (option.equals("--escape-counts=16")) {
+                pixelBits = 16;
+            } else if (option.startsWith("--vector-bits=")) {
+                vectorBits = Integer.parseInt(
+                        option.substring("--vector-bits=".length()));
+            } else if (option.startsWith("--interleave=")) {
+                interleave = Integer.parseInt(
+                        option.substring("--interleave=".length()));
+            } else if (option.equals("--probe-kernels")) {
+                probeKernels = true;
+            } else if (option.startsWith("--kernel-cache=")) {
+                kernelCachePath = option.substring("--kernel-cache=".length());
+            } else if (option.equals("--probe-kernel")) {
+                probeKernel = true;
+            } else if (option.equals("--mirror")) {
+                mirrorRows = true;
+            } else if (option.equals("--interior-shortcuts")) {
+                interiorShortcuts = true;
+            } else if (option.equals("--stream")) {
+                streaming = true;
+            } else if (option.startsWith("--tile-size=")) {
+                maxTileSize = Integer.parseInt(
+                        option.substring("--tile-size=".length()));
+                if (maxTileSize < 64 || maxTileSize % 64 != 0) {
+                    throw new IllegalArgumentException(
+                            "tile size must be a positive multiple of 64");
+                }
+            } else if (option.startsWith("--mapped-output=")) {
+                mappedOutputPath =
+                        option.substring("--mapped-output=".length());
+            } else if (option.startsWith("--tile-stats=")) {
+                tileStatsPath = option.substring("--tile-stats=".length());
+            } else {
+                throw new IllegalArgumentException("unknown option: " + option);
+            }
+        }
+        if (probeKernels || kernelCachePath != null) {
+            chooseKernel(probeKernels, kernelCachePath);
+        }
+        if (vectorBits != 0 && vectorBits != 128 && vectorBits != 256 &&
+                vectorBits != 512) {
+            throw new IllegalArgumentException(
+                    "vector bits must be 128, 256 or 512");
+        }
+        if (interleave != 1 && interleave != 2 && interleave != 4) {
+            throw new IllegalArgumentException("interleave must be 1, 2 or 4");
+        }
+        if ((Kernels.LANES > 8) ||
+                (Kernels.LANES != (1 << Kernels.LANES_LOG))) {
             var errorMsg = "LANES must be a power of two and at most 8. " +
                     "Change SPECIES in the source code.";
             throw new RuntimeException(errorMsg);
         }
-        // benchmarks game mandelbrot run
-        var sideLen = Integer.parseInt(args[0]);
+        if (probeKernel) {
+            System.out.println(timeKernel());
+            return;
+        }
+        if (width < 1 || height < 1 || maxIter < 1 || !(zoom > 0)) {
+            throw new IllegalArgumentException(
+                    "width, height, max iterations and zoom must be positive");
+        }
+        if (viewport != null && centered) {
+            throw new IllegalArgumentException(
+                    "viewport can't be combined with center or zoom");
+        }
+        if (frames < 1 || !(zoomStep > 0)) {
+            throw new IllegalArgumentException(
+                    "frames and zoom step must be positive");
+        }
+        var view = viewport != null ?
+                View.ofViewport(width, height, viewport, maxIter) :
+                View.ofCenter(width, height, centerRe, centerIm, zoom, maxIter);
+        var floatValidation = floatValidationPath != null ?
+                readFloatValidation(Path.of(floatValidationPath)) :
+                new LinkedHashMap<String, Boolean>();
+        if (validateFloat) {
+            floatValidation.put(view.key(), validateFloat(view) == 0);
+            if (floatValidationPath != null) {
+                writeFloatValidation(Path.of(floatValidationPath),
+                        floatValidation);
+            }
+            // a check only, the rendered images were just compared
+            return;
+        }
+        var grid = makeGrid(view, precision, pixelBits, floatValidation);
+        if (frames > 1 || framesDir != null) {
+            if (tiled || streaming || mappedOutputPath != null) {
+                throw new IllegalArgumentException(
+                        "frames are rendered only with rows schedule");
+            }
+            if (viewport != null && zoomStep != 1.0) {
+                throw new IllegalArgumentException(
+                        "zoom step needs center and zoom instead of viewport");
+            }
+            var grids = new ArrayList<Grid>();
+            grids.add(grid);
+            for (var frame = 1; frame < frames; frame++) {
+                grids.add(viewport != null ? grid : makeGrid(
+                        View.ofCenter(width, height, centerRe, centerIm,
+                                zoom * Math.pow(zoomStep, frame), maxIter),
+                        precision, pixelBits, floatValidation));
+            }
+            computeFrames(grids, framesDir != null ? Path.of(framesDir) : null);
+            return;
+        }
+        if (streaming && tiled) {
+            throw new IllegalArgumentException(
+                    "streaming output works only with rows schedule");
+        }
+        if (streaming && mirrorRows) {
+            throw new IllegalArgumentException(
+                    "streaming output can't mirror rows already written");
+        }
+        if (streaming && mappedOutputPath != null) {
+            throw new IllegalArgumentException(
+                    "streaming and mapped output can't be used together");
+        }
+        if (mappedOutputPath != null) {
+            try (var rows = new MappedRows(Path.of(mappedOutputPath),
+                    grid.header(), grid)) {
+                if (tiled) {
+                    computeTiles(grid, maxTileSize, tileStatsPath, rows);
+                } else {
+                    computeRows(grid, rows);
+                }
+            }
+            return;
+        }
         try (var out = new BufferedOutputStream(makeOut2())) {
-            var headerStr = String.format("P4\n%d %d\n", sideLen, sideLen);
-            out.write(headerStr.getBytes());
-            out.write(computeRows(sideLen));
+            out.write(grid.header());
+            if (streaming) {
+                computeRowsStreaming(grid, out);
+            } else {
+                var rows = HeapRows.of(grid);
+                if (tiled) {
+                    computeTiles(grid, maxTileSize, tileStatsPath, rows);
+                } else {
+                    computeRows(grid, rows);
+                }
+                out.write(rows.rowsMerged());
+            }
         }
     }
 
+    /**
+     * Sets vectorBits and interleave from the cache file, or if there's no
+     * cache file or probing is forced, to the fastest combination found by
+     * timing each of them in a separate JVM, see timeKernel. Vector sizes
+     * above the preferred one are emulated, so they're not tried.
+     */
+    private static void chooseKernel(boolean probe, String cachePath)
+            throws IOException {
+        if (!probe && Files.exists(Path.of(cachePath))) {
+            var choice = Files.readString(Path.of(cachePath)).trim().split(" ");
+            vectorBits = Integer.parseInt(choice[0]);
+            interleave = Integer.parseInt(choice[1]);
+            return;
+        }
+        var maxBits = Math.min(512, VectorShape.preferredShape().vectorBitSize());
+        var bestNanos = Long.MAX_VALUE;
+        for (var bits = 128; bits <= maxBits; bits *= 2) {
+            for (var ways = 1; ways <= 4; ways *= 2) {
+                var nanos = timeKernelInChildJvm(bits, ways);
+                System.err.printf("vector bits %d, interleave %d: %d us%n",
+                        bits, ways, nanos / 1000);
+                if (nanos < bestNanos) {
+                    bestNanos = nanos;
+                    vectorBits = bits;
+                    interleave = ways;
+                }
+            }
+        }
+        System.err.printf("chosen vector bits %d, interleave %d%n",
+                vectorBits, interleave);
+        if (cachePath != null) {
+            Files.writeString(Path.of(cachePath),
+                    vectorBits + " " + interleave + "\n");
+        }
+    }
+
+    // runs this program's class again with --probe-kernel, which needs the
+    // program to be compiled, i.e. not run from the source file
+    private static long timeKernelInChildJvm(int bits, int ways)
+            throws IOException {
+        var command = new ArrayList<String>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mandelbrot_panama_vector.class.getName());
+        command.add("0");
+        command.add("--vector-bits=" + bits);
+        command.add("--interleave=" + ways);
+        command.add("--probe-kernel");
+        var process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (var reader = process.inputReader()) {
+            var line = reader.readLine();
+            if (process.waitFor() != 0 || line == null) {
+                throw new IOException("probing kernel failed: " + command);
+            }
+            return Long.parseLong(line.trim());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // best of a few rounds over rows crossing the main cardioid, after warm-up
+    private static long timeKernel() {
+        var grid = Grid.of(View.ofCenter(2048, 2048, -0.5, 0.0, 1.0, 50),
+                Precision.DOUBLE, 1);
+        var rowChunks = new long[grid.rowChunksLength()];
+        var rowsMerged = new byte[grid.rowOutputSize()];
+        var bitsReversalMapping = computeBitsReversalMapping();
+        var bestNanos = Long.MAX_VALUE;
+        for (var round = 0; round < 15; round++) {
+            var startTime = System.nanoTime();
+            for (var y = 924; y < 1124; y++) {
+                computeRow(grid, y, 0, 2048, bitsReversalMapping, rowChunks,
+                        rowsMerged, 0);
+            }
+            if (round >= 10) {
+                bestNanos = Math.min(bestNanos, System.nanoTime() - startTime);
+            }
+        }
+        return bestNanos;
+    }
+
+    private static Grid makeGrid(View view, Precision precision, int pixelBits,
+                                 Map<String, Boolean> floatValidation) {
+        if (pixelBits != 1) {
+            if (precision != null && precision != Precision.DOUBLE) {
+                throw new IllegalArgumentException(
+                        "escape counts work only with the double kernel");
+            }
+            if (interiorShortcuts) {
+                throw new IllegalArgumentException(
+                        "escape counts can't use interior shortcuts");
+            }
+            var grid = Grid.of(view, Precision.DOUBLE, pixelBits);
+            return mirrorRows ? grid.withMirrorRows() : grid;
+        }
+        var grid = Grid.of(view, precision != null ? precision :
+                Precision.auto(view,
+                        floatValidation.getOrDefault(view.key(), false)),
+                pixelBits);
+        if (interiorShortcuts && grid.precision() != Precision.DOUBLE) {
+            throw new IllegalArgumentException(
+                    "interior shortcuts work only with the double kernel");
+        }
+        return mirrorRows ? grid.withMirrorRows() : grid;
+    }
+
+    private static double[] parseDoubles(String list, int count) {
+        var parts = list.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException(
+                    "expected " + count + " comma separated numbers: " + list);
+        }
+        var numbers = new double[count];
+        for (var i = 0; i < count; i++) {
+            numbers[i] = Double.parseDouble(parts[i]);
+        }
+        return numbers;
+    }
+
     @SuppressWarnings("unused")
     // the version that avoids mixing up output with JVM diagnostic messages
     private static OutputStream makeOut1() throws IOException {
@@ -54,34 +402,668 @@ public class mandelbrot_panama_vector {
         return System.out;
     }
 
-    private static byte[] computeRows(int sideLen) {
+    /**
+     * Rendered part of the complex plane. Pixel (x, y) has coordinates
+     * (x * reStep + reMin, y * imStep + imMin), so the default view gives
+     * exactly the benchmark's x * (2.0 / sideLen) - 1.5 and y * ... - 1.0.
+     */
+    private record View(int width, int height, double reMin, double imMin,
+                        double reStep, double imStep, int maxIter) {
+        static View ofViewport(int width, int height, double[] viewport,
+                               int maxIter) {
+            return new View(width, height, viewport[0], viewport[1],
+                    (viewport[2] - viewport[0]) / width,
+                    (viewport[3] - viewport[1]) / height, maxIter);
+        }
+
+        // at zoom 1 the imaginary part goes from -1 to 1, pixels are square
+        static View ofCenter(int width, int height, double centerRe,
+                             double centerIm, double zoom, int maxIter) {
+            var halfIm = 1.0 / zoom;
+            var halfRe = halfIm * width / height;
+            return new View(width, height, centerRe - halfRe, centerIm - halfIm,
+                    2 * halfRe / width, 2 * halfIm / height, maxIter);
+        }
+
+        double cr(int x) {
+            return x * reStep + reMin;
+        }
+
+        double ci(int y) {
+            return y * imStep + imMin;
+        }
+
+        int paddedWidth() {
+            return (width + 63) & -64;
+        }
+
+        // doubles are printed exactly, so equal keys mean equal coordinates
+        String key() {
+            return width + " " + height + " " + reMin + " " + imMin + " " +
+                    reStep + " " + imStep + " " + maxIter;
+        }
+    }
+
+    private enum Precision {
+        FLOAT("float"), DOUBLE("double"), DOUBLE_DOUBLE("double-double");
+
+        private final String label;
+
+        Precision(String label) {
+            this.label = label;
+        }
+
+        static Precision of(String label) {
+            for (var precision : values()) {
+                if (precision.label.equals(label)) {
+                    return precision;
+                }
+            }
+            throw new IllegalArgumentException("unknown kernel: " + label);
+        }
+
+        // doubles are fine while neighbouring pixels are a few thousand ulps
+        // apart, deeper zooms need double-double. Float is picked only for
+        // views where validateFloat found it gives the same image as double.
+        static Precision auto(View view, boolean floatValidated) {
+            var magnitude = Math.max(
+                    Math.max(Math.abs(view.reMin()),
+                            Math.abs(view.cr(view.width()))),
+                    Math.max(Math.abs(view.imMin()),
+                            Math.abs(view.ci(view.height()))));
+            var spacing = Math.min(Math.abs(view.reStep()),
+                    Math.abs(view.imStep()));
+            if (spacing < magnitude * 0x1p-40) {
+                return DOUBLE_DOUBLE;
+            }
+            return floatValidated ? FLOAT : DOUBLE;
+        }
+    }
+
+    /**
+     * View with real parts of all columns precomputed for the kernel of the
+     * given precision. For double-double aCr holds the high parts and aCrLo
+     * the low parts. Float and double-double kernels compute whole 64 pixel
+     * chunks, so their columns are padded to a multiple of 64, while the
+     * double kernel computes the end of row not filling a chunk in scalar code.
+     * With 1 bit per pixel the image is PBM, with 8 or 16 bits per pixel it's
+     * PGM of escape counts, computed over padded columns as well. mirrorRows
+     * is null unless rows are mirrored, see withMirrorRows.
+     */
+    private record Grid(View view, Precision precision, int pixelBits,
+                        double[] aCr, double[] aCrLo, float[] aCrFloat,
+                        int[] mirrorRows) {
+        static Grid of(View view, Precision precision, int pixelBits) {
+            return switch (precision) {
+                case DOUBLE -> new Grid(view, precision, pixelBits,
+                        IntStream.range(0, pixelBits == 1 ?
+                                        view.width() : view.paddedWidth())
+                                .parallel().mapToDouble(view::cr).toArray(),
+                        null, null, null);
+                case FLOAT -> {
+                    var aCrFloat = new float[view.paddedWidth()];
+                    for (var x = 0; x < aCrFloat.length; x++) {
+                        aCrFloat[x] = (float) view.cr(x);
+                    }
+                    yield new Grid(view, precision, pixelBits,
+                            null, null, aCrFloat, null);
+                }
+                case DOUBLE_DOUBLE -> {
+                    var aCr = new double[view.paddedWidth()];
+                    var aCrLo = new double[view.paddedWidth()];
+                    for (var x = 0; x < aCr.length; x++) {
+                        aCr[x] = view.cr(x);
+                        aCrLo[x] = twoSumError(view.reMin(),
+                                x * view.reStep(), aCr[x]);
+                    }
+                    yield new Grid(view, precision, pixelBits,
+                            aCr, aCrLo, null, null);
+                }
+            };
+        }
+
+        /**
+         * Conjugate points have conjugate orbits, and rounding is symmetric
+         * around zero, so a row whose imaginary part is the exact opposite of
+         * an earlier row's gives exactly the same pixels as that row. Such a
+         * row gets the earlier row's index in mirrorRows, to be copied instead
+         * of computed; all other rows get -1. Whether the grid lines up, e.g.
+         * the benchmark's Ci = y * fac - 1.0 for odd sideLen, doesn't matter,
+         * rows are only ever matched when their coordinates are exact.
+         */
+        Grid withMirrorRows() {
+            var rowsByCi = new HashMap<Double, Integer>();
+            var mirrorRows = new int[view.height()];
+            for (var y = 0; y < view.height(); y++) {
+                var Ci = view.ci(y);
+                var source = rowsByCi.get(-Ci);
+                mirrorRows[y] = source != null &&
+                        ciLo(source) == -ciLo(y) ? source : -1;
+                rowsByCi.putIfAbsent(Ci, y);
+            }
+            return new Grid(view, precision, pixelBits, aCr, aCrLo, aCrFloat,
+                    mirrorRows);
+        }
+
+        // low part of the imaginary part, only double-double has one
+        private double ciLo(int y) {
+            return precision == Precision.DOUBLE_DOUBLE ? twoSumError(
+                    view.imMin(), y * view.imStep(), view.ci(y)) : 0.0;
+        }
+
+        boolean isMirrored(int y) {
+            return mirrorRows != null && mirrorRows[y] >= 0;
+        }
+
+        // rows from here on are all mirrored
+        int computedHeight() {
+            var height = view.height();
+            while (height > 0 && isMirrored(height - 1)) {
+                height--;
+            }
+            return height;
+        }
+
+        // escape counts need a long per pixel instead of a bit
+        int rowChunksLength() {
+            return pixelBits == 1 ? view.paddedWidth() >> 6 : view.paddedWidth();
+        }
+
+        int rowOutputSize() {
+            return byteOffset(view.width());
+        }
+
+        // start of pixel x in a row, or end of row for x equal to width
+        int byteOffset(int x) {
+            return (int) (((long) x * pixelBits + 7) / 8);
+        }
+
+        int maxValue() {
+            return Math.min(view.maxIter(), (1 << pixelBits) - 1);
+        }
+
+        byte[] header() {
+            var header = pixelBits == 1 ?
+                    String.format("P4\n%d %d\n", view.width(), view.height()) :
+                    String.format("P5\n%d %d\n%d\n", view.width(),
+                            view.height(), maxValue());
+            return header.getBytes();
+        }
+    }
+
+    // rounding error of sum = a + b, i.e. a + b == sum + error exactly
+    private static double twoSumError(double a, double b, double sum) {
+        var bVirtual = sum - a;
+        return (a - (sum - bVirtual)) + (b - bVirtual);
+    }
+
+    /**
+     * Renders the view with both the float and the double kernel and returns
+     * the number of pixels that differ. Float rounding moves the escape
+     * boundary slightly, so whether the images match depends on the view.
+     */
+    private static long validateFloat(View view) {
+        var floatGrid = Grid.of(view, Precision.FLOAT, 1);
+        var rowOutputSize = floatGrid.rowOutputSize();
+        var floatRows = HeapRows.of(floatGrid);
+        var doubleRows = HeapRows.of(floatGrid);
+        computeRows(floatGrid, floatRows);
+        computeRows(Grid.of(view, Precision.DOUBLE, 1), doubleRows);
+        var differingPixels = 0L;
+        var firstRow = -1;
+        for (var i = 0; i < floatRows.rowsMerged().length; i++) {
+            var differingBits = Integer.bitCount(0xff &
+                    (floatRows.rowsMerged()[i] ^ doubleRows.rowsMerged()[i]));
+            if (differingBits != 0 && firstRow < 0) {
+                firstRow = i / rowOutputSize;
+            }
+            differingPixels += differingBits;
+        }
+        if (differingPixels == 0) {
+            System.err.printf("float kernel is bit-exact for %dx%d%n",
+                    view.width(), view.height());
+        } else {
+            System.err.printf("float kernel differs in %d pixels for %dx%d, " +
+                            "first in row %d%n", differingPixels,
+                    view.width(), view.height(), firstRow);
+        }
+        return differingPixels;
+    }
+
+    // one line per validated view: View.key() and then exact or differs
+    private static Map<String, Boolean> readFloatValidation(Path path)
+            throws IOException {
+        var results = new LinkedHashMap<String, Boolean>();
+        if (Files.exists(path)) {
+            for (var line : Files.readAllLines(path)) {
+                var separator = line.lastIndexOf(' ');
+                if (separator > 0) {
+                    results.put(line.substring(0, separator),
+                            line.substring(separator + 1).equals("exact"));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static void writeFloatValidation(Path path,
+                                             Map<String, Boolean> results)
+            throws IOException {
+        try (var writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            results.forEach((key, exact) ->
+                    writer.println(key + " " + (exact ? "exact" : "differs")));
+        }
+    }
+
+    /**
+     * Destination of computed rows. computeRow writes row y into the array
+     * returned by rowArray at rowOffset, then rowComputed is told which bytes
+     * of the row are final.
+     */
+    private interface RowsOutput {
+        byte[] rowArray(int y);
+
+        int rowOffset(int y);
+
+        void rowComputed(int y, int byte0, int byte1);
+
+        void copyRow(int fromY, int toY);
+    }
+
+    /**
+     * Whole image in one array. Its size is checked up front, so the int row
+     * offsets, at most the array length, can't overflow.
+     */
+    private record HeapRows(byte[] rowsMerged, int rowOutputSize)
+            implements RowsOutput {
+        // some JVMs reserve a few header words in the largest arrays
+        private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+        static HeapRows of(Grid grid) {
+            var height = grid.view().height();
+            var size = (long) height * grid.rowOutputSize();
+            if (size > MAX_ARRAY_LENGTH) {
+                throw new IllegalArgumentException(String.format(
+                        "%dx%d image needs %d bytes, more than an array " +
+                                "holds; only --mapped-output=<file> and " +
+                                "--stream write larger images",
+                        grid.view().width(), height, size));
+            }
+            return new HeapRows(new byte[(int) size], grid.rowOutputSize());
+        }
+
+        @Override
+        public byte[] rowArray(int y) {
+            return rowsMerged;
+        }
+
+        @Override
+        public int rowOffset(int y) {
+            return y * rowOutputSize;
+        }
+
+        @Override
+        public void rowComputed(int y, int byte0, int byte1) {
+        }
+
+        @Override
+        public void copyRow(int fromY, int toY) {
+            System.arraycopy(rowsMerged, fromY * rowOutputSize,
+                    rowsMerged, toY * rowOutputSize, rowOutputSize);
+        }
+    }
+
+    /**
+     * PBM file pre-sized and mapped to memory, so every worker copies its
+     * rows straight to their final place in the file. A single mapping can't
+     * exceed 2 GiB, so the rows are mapped in regions of whole rows.
+     */
+    private static final class MappedRows implements RowsOutput, AutoCloseable {
+        private final FileChannel channel;
+        private final MappedByteBuffer[] regions;
+        private final int rowsPerRegion;
+        private final int rowOutputSize;
+        private final ThreadLocal<byte[]> threadRowBuffers;
+
+        private MappedRows(Path path, byte[] header, Grid grid)
+                throws IOException {
+            var height = grid.view().height();
+            rowOutputSize = grid.rowOutputSize();
+            rowsPerRegion = Math.max(1, Integer.MAX_VALUE / rowOutputSize);
+            threadRowBuffers =
+                    ThreadLocal.withInitial(() -> new byte[rowOutputSize]);
+            channel = FileChannel.open(path, CREATE, READ, WRITE,
+                    TRUNCATE_EXISTING);
+            channel.write(ByteBuffer.wrap(header), 0);
+            regions = new MappedByteBuffer[
+                    (height + rowsPerRegion - 1) / rowsPerRegion];
+            for (var i = 0; i < regions.length; i++) {
+                var firstRow = (long) i * rowsPerRegion;
+                var regionRows = Math.min(rowsPerRegion, height - firstRow);
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        header.length + firstRow * rowOutputSize,
+                        regionRows * rowOutputSize);
+            }
+        }
+
+        @Override
+        public byte[] rowArray(int y) {
+            return threadRowBuffers.get();
+        }
+
+        @Override
+        public int rowOffset(int y) {
+            return 0;
+        }
+
+        @Override
+        public void rowComputed(int y, int byte0, int byte1) {
+            regions[y / rowsPerRegion].put(
+                    (y % rowsPerRegion) * rowOutputSize + byte0,
+                    threadRowBuffers.get(), byte0, byte1 - byte0);
+        }
+
+        @Override
+        public void copyRow(int fromY, int toY) {
+            var rowBuffer = threadRowBuffers.get();
+            regions[fromY / rowsPerRegion].get(
+                    (fromY % rowsPerRegion) * rowOutputSize, rowBuffer);
+            regions[toY / rowsPerRegion].put(
+                    (toY % rowsPerRegion) * rowOutputSize, rowBuffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static void computeRows(Grid grid, RowsOutput rows) {
         var threadRowChunks =
-                ThreadLocal.withInitial(() -> new long[sideLen / 64]);
-        var rowOutputSize = (sideLen + 7) / 8;
-        var rowsMerged = new byte[sideLen * rowOutputSize];
+                ThreadLocal.withInitial(() -> new long[grid.rowChunksLength()]);
         var numCpus = Runtime.getRuntime().availableProcessors();
-        var fac = 2.0 / sideLen;
-        var aCr = IntStream.range(0, sideLen).parallel()
-                .mapToDouble(x -> x * fac - 1.5).toArray();
         var bitsReversalMapping = computeBitsReversalMapping();
         try (var computeEc = Executors.newWorkStealingPool(numCpus)) {
-            for (var i = 0; i < sideLen; i++) {
-                var y = i;
+            submitRows(computeEc, grid, rows, threadRowChunks,
+                    bitsReversalMapping);
+        }
+        copyMirroredRows(grid, rows);
+    }
+
+    private static void copyMirroredRows(Grid grid, RowsOutput rows) {
+        for (var y = 0; y < grid.view().height(); y++) {
+            if (grid.isMirrored(y)) {
+                rows.copyRow(grid.mirrorRows()[y], y);
+            }
+        }
+    }
+
+    private static List<Future<?>> submitRows(ExecutorService computeEc,
+                                              Grid grid, RowsOutput rows,
+                                              ThreadLocal<long[]> threadRowChunks,
+                                              byte[] bitsReversalMapping) {
+        var view = grid.view();
+        var rowTasks = new ArrayList<Future<?>>(view.height());
+        for (var i = 0; i < view.height(); i++) {
+            var y = i;
+            if (grid.isMirrored(y)) {
+                continue;
+            }
+            rowTasks.add(computeEc.submit(() -> {
+                var rowChunks = threadRowChunks.get();
+                try {
+                    computeRow(grid, y, 0, view.width(),
+                            bitsReversalMapping, rowChunks,
+                            rows.rowArray(y), rows.rowOffset(y));
+                    rows.rowComputed(y, 0, grid.rowOutputSize());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            }));
+        }
+        return rowTasks;
+    }
+
+    /**
+     * Renders a sequence of frames, e.g. a zoom animation, without paying for
+     * a new pool and rowChunks buffers per frame. A separate thread writes
+     * frame n while the workers compute frame n + 1; frames alternate between
+     * two buffers, so computing frame n + 2 waits until frame n is written.
+     * Frames go to stdout one after another, as multi-image PBM, or to
+     * separate files in framesDir. Frame latency is measured from the start
+     * of computing to the end of writing.
+     */
+    private static void computeFrames(List<Grid> grids, Path framesDir)
+            throws IOException {
+        var view = grids.get(0).view();
+        var headerBytes = grids.get(0).header();
+        var numCpus = Runtime.getRuntime().availableProcessors();
+        var threadRowChunks = ThreadLocal.withInitial(
+                () -> new long[grids.get(0).rowChunksLength()]);
+        var bitsReversalMapping = computeBitsReversalMapping();
+        var frameBuffers = new HeapRows[2];
+        for (var i = 0; i < frameBuffers.length; i++) {
+            frameBuffers[i] = HeapRows.of(grids.get(0));
+        }
+        var frameWrites = new Future<?>[frameBuffers.length];
+        var frameNanos = new long[grids.size()];
+        var out = new BufferedOutputStream(makeOut2());
+        var computeEc = Executors.newFixedThreadPool(numCpus);
+        var writeEc = Executors.newSingleThreadExecutor();
+        var startTime = System.nanoTime();
+        try {
+            for (var frame = 0; frame < grids.size(); frame++) {
+                var slot = frame % frameBuffers.length;
+                if (frameWrites[slot] != null) {
+                    frameWrites[slot].get();
+                }
+                var frameStart = System.nanoTime();
+                var rows = frameBuffers[slot];
+                for (var rowTask : submitRows(computeEc, grids.get(frame), rows,
+                        threadRowChunks, bitsReversalMapping)) {
+                    rowTask.get();
+                }
+                copyMirroredRows(grids.get(frame), rows);
+                var frameIndex = frame;
+                frameWrites[slot] = writeEc.submit(() -> {
+                    if (framesDir != null) {
+                        var path = framesDir.resolve(
+                                String.format("frame_%05d.pbm", frameIndex));
+                        try (var frameOut = new BufferedOutputStream(
+                                Files.newOutputStream(path))) {
+                            frameOut.write(headerBytes);
+                            frameOut.write(rows.rowsMerged());
+                        }
+                    } else {
+                        out.write(headerBytes);
+                        out.write(rows.rowsMerged());
+                    }
+                    frameNanos[frameIndex] = System.nanoTime() - frameStart;
+                    return null;
+                });
+            }
+            for (var frameWrite : frameWrites) {
+                if (frameWrite != null) {
+                    frameWrite.get();
+                }
+            }
+            out.flush();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("rendering frames failed", e);
+        } finally {
+            computeEc.shutdownNow();
+            writeEc.shutdownNow();
+        }
+        reportFrames(frameNanos, System.nanoTime() - startTime);
+    }
+
+    private static void reportFrames(long[] frameNanos, long totalNanos) {
+        var sortedNanos = frameNanos.clone();
+        Arrays.sort(sortedNanos);
+        var count = sortedNanos.length;
+        System.err.printf("%d frames in %.3f s, %.2f frames/s%n", count,
+                totalNanos / 1e9, count * 1e9 / totalNanos);
+        System.err.printf("frame latency p50 %.1f ms, p90 %.1f ms, " +
+                        "p99 %.1f ms, max %.1f ms%n",
+                sortedNanos[(count - 1) * 50 / 100] / 1e6,
+                sortedNanos[(count - 1) * 90 / 100] / 1e6,
+                sortedNanos[(count - 1) * 99 / 100] / 1e6,
+                sortedNanos[count - 1] / 1e6);
+    }
+
+    /**
+     * Rows are computed into a bounded ring of row buffers and written in
+     * order as soon as the leading row is ready, so memory use doesn't grow
+     * with image size and output overlaps with computation. A worker takes
+     * the next row only when there's a free slot in the ring.
+     */
+    private static void computeRowsStreaming(Grid grid, OutputStream out)
+            throws IOException {
+        var view = grid.view();
+        var rowOutputSize = grid.rowOutputSize();
+        var numCpus = Runtime.getRuntime().availableProcessors();
+        var bitsReversalMapping = computeBitsReversalMapping();
+        var ringSize = numCpus * 4;
+        var rowBuffers = new byte[ringSize][rowOutputSize];
+        var readySlots = new Semaphore[ringSize];
+        for (var slot = 0; slot < ringSize; slot++) {
+            readySlots[slot] = new Semaphore(0);
+        }
+        // rows taken but not yet written always fit in the ring
+        var unwrittenRows = new Semaphore(ringSize);
+        var nextRow = new AtomicInteger();
+        var computeEc = Executors.newFixedThreadPool(numCpus);
+        try {
+            for (var i = 0; i < numCpus; i++) {
                 computeEc.submit(() -> {
-                    var rowChunks = threadRowChunks.get();
-                    var rowOffset = y * rowOutputSize;
-                    var Ci = y * fac - 1.0;
+                    var rowChunks = new long[grid.rowChunksLength()];
                     try {
-                        computeRow(Ci, aCr, bitsReversalMapping,
-                                rowChunks, rowsMerged, rowOffset);
+                        while (true) {
+                            unwrittenRows.acquire();
+                            var y = nextRow.getAndIncrement();
+                            if (y >= view.height()) {
+                                break;
+                            }
+                            var slot = y % ringSize;
+                            computeRow(grid, y, 0, view.width(),
+                                    bitsReversalMapping, rowChunks,
+                                    rowBuffers[slot], 0);
+                            readySlots[slot].release();
+                        }
+                    } catch (InterruptedException e) {
+                        // writing failed, so the remaining rows are not needed
                     } catch (Exception e) {
                         e.printStackTrace();
                         System.exit(-1);
                     }
                 });
             }
+            for (var y = 0; y < view.height(); y++) {
+                var slot = y % ringSize;
+                readySlots[slot].acquireUninterruptibly();
+                out.write(rowBuffers[slot]);
+                unwrittenRows.release();
+            }
+        } finally {
+            computeEc.shutdownNow();
+        }
+    }
+
+    /**
+     * Square tiles, in row-major order of bands, are handed out to worker
+     * threads from a shared queue. Rows crossing the set's interior are much
+     * slower than rows escaping fast, so tiles shrink towards the end of the
+     * queue to keep all threads busy until the very last tile.
+     */
+    private static void computeTiles(Grid grid, int maxTileSize,
+                                     String tileStatsPath, RowsOutput rows)
+            throws IOException {
+        var threadRowChunks =
+                ThreadLocal.withInitial(() -> new long[grid.rowChunksLength()]);
+        var numCpus = Runtime.getRuntime().availableProcessors();
+        var bitsReversalMapping = computeBitsReversalMapping();
+        var tiles = planTiles(grid.view().width(), grid.computedHeight(),
+                maxTileSize, numCpus);
+        var tileNanos = new long[tiles.size()];
+        var nextTile = new AtomicInteger();
+        try (var computeEc = Executors.newWorkStealingPool(numCpus)) {
+            for (var i = 0; i < numCpus; i++) {
+                computeEc.submit(() -> {
+                    var rowChunks = threadRowChunks.get();
+                    int tileIndex;
+                    while ((tileIndex = nextTile.getAndIncrement()) < tiles.size()) {
+                        var tile = tiles.get(tileIndex);
+                        var startTime = System.nanoTime();
+                        try {
+                            for (var y = tile.y0(); y < tile.y1(); y++) {
+                                if (grid.isMirrored(y)) {
+                                    continue;
+                                }
+                                computeRow(grid, y, tile.x0(), tile.x1(),
+                                        bitsReversalMapping, rowChunks,
+                                        rows.rowArray(y), rows.rowOffset(y));
+                                rows.rowComputed(y, grid.byteOffset(tile.x0()),
+                                        grid.byteOffset(tile.x1()));
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            System.exit(-1);
+                        }
+                        tileNanos[tileIndex] = System.nanoTime() - startTime;
+                    }
+                });
+            }
         }
-        return rowsMerged;
+        copyMirroredRows(grid, rows);
+        if (tileStatsPath != null) {
+            writeTileStats(tiles, tileNanos, Path.of(tileStatsPath));
+        }
+    }
+
+    private record Tile(int x0, int y0, int x1, int y1) {
+    }
+
+    // tile side is the largest one (a power of two multiple of 64) that still
+    // leaves a few tiles per cpu in the remaining part of the image
+    private static List<Tile> planTiles(int width, int height, int maxTileSize,
+                                        int numCpus) {
+        var tiles = new ArrayList<Tile>();
+        var y0 = 0;
+        while (y0 < height) {
+            var remainingArea = (long) (height - y0) * width;
+            var tileSize = maxTileSize;
+            while (tileSize > 64 && remainingArea <
+                    (long) tileSize * tileSize * numCpus * 4) {
+                tileSize /= 2;
+            }
+            tileSize = tileSize & -64;
+            var y1 = Math.min(height, y0 + tileSize);
+            for (var x0 = 0; x0 < width; x0 += tileSize) {
+                tiles.add(new Tile(x0, y0, Math.min(width, x0 + tileSize), y1));
+            }
+            y0 = y1;
+        }
+        return tiles;
+    }
+
+    private static void writeTileStats(List<Tile> tiles, long[] tileNanos,
+                                       Path path) throws IOException {
+        try (var writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            writer.println("x,y,width,height,nanos");
+            for (var i = 0; i < tiles.size(); i++) {
+                var tile = tiles.get(i);
+                writer.printf("%d,%d,%d,%d,%d%n", tile.x0(), tile.y0(),
+                        tile.x1() - tile.x0(), tile.y1() - tile.y0(),
+                        tileNanos[i]);
+            }
+        }
+        var sortedNanos = tileNanos.clone();
+        Arrays.sort(sortedNanos);
+        System.err.printf("%d tiles, min %d us, median %d us, max %d us%n",
+                sortedNanos.length, sortedNanos[0] / 1000,
+                sortedNanos[sortedNanos.length / 2] / 1000,
+                sortedNanos[sortedNanos.length - 1] / 1000);
     }
 
     private static byte[] computeBitsReversalMapping() {
@@ -92,45 +1074,452 @@ public class mandelbrot_panama_vector {
         return bitsReversalMapping;
     }
 
-    private static void computeRow(double Ci, double[] aCr,
+    // x0 must be a multiple of 64, as well as x1 unless it's the end of row
+    private static void computeRow(Grid grid, int y, int x0, int x1,
                                    byte[] bitsReversalMapping, long[] rowChunks,
                                    byte[] rowsMerged, int rowOffset) {
-        computeChunksVector(Ci, aCr, rowChunks);
-        transferRowFlags(rowChunks, bitsReversalMapping, rowsMerged, rowOffset);
-        computeRemainderScalar(Ci, aCr, rowsMerged, rowOffset);
+        var view = grid.view();
+        var maxIter = view.maxIter();
+        var Ci = view.ci(y);
+        if (grid.pixelBits() != 1) {
+            // rowChunks holds a count per pixel here
+            Kernels.computeCountsVector(Ci, grid.aCr(), x0,
+                    (x1 + 63) & -(1 << 6), rowChunks, maxIter);
+            transferRowCounts(rowChunks, x0, Math.min(x1, view.width()),
+                    grid, rowsMerged, rowOffset);
+            return;
+        }
+        if (grid.precision() == Precision.DOUBLE) {
+            var aCr = grid.aCr();
+            var chunksEnd = Math.min(x1, aCr.length & -(1 << 6));
+            if (interiorShortcuts) {
+                Kernels.computeChunksVectorShortcuts(Ci, aCr, x0, chunksEnd,
+                        rowChunks, maxIter);
+            } else {
+                Kernels.computeChunksVector(Ci, aCr, x0, chunksEnd, rowChunks,
+                        maxIter);
+            }
+            transferRowFlags(rowChunks, x0 >> 6, chunksEnd >> 6,
+                    bitsReversalMapping, rowsMerged, rowOffset);
+            if (x1 == aCr.length) {
+                computeRemainderScalar(Ci, aCr, rowsMerged, rowOffset, maxIter);
+            }
+            return;
+        }
+        var chunksEnd = (x1 + 63) & -(1 << 6);
+        if (grid.precision() == Precision.FLOAT) {
+            Kernels.computeChunksFloat((float) Ci, grid.aCrFloat(), x0,
+                    chunksEnd, rowChunks, maxIter);
+        } else {
+            Kernels.computeChunksDoubleDouble(Ci,
+                    twoSumError(view.imMin(), y * view.imStep(), Ci),
+                    grid.aCr(), grid.aCrLo(), x0, chunksEnd, rowChunks,
+                    maxIter);
+        }
+        transferPaddedRowFlags(rowChunks, x0, x1, view.width(),
+                bitsReversalMapping, rowsMerged, rowOffset);
     }
 
-    private static void computeChunksVector(double Ci, double[] aCr,
-                                            long[] rowChunks) {
-        var sideLen = aCr.length;
-        var vCi = DoubleVector.broadcast(SPECIES, Ci);
-        var vZeroes = DoubleVector.zero(SPECIES);
-        var vFours = DoubleVector.broadcast(SPECIES, 4.0);
-        var zeroMask = VectorMask.fromLong(SPECIES, 0);
-        // (1 << 6) = 64 = length of long in bits
-        for (var xBase = 0; xBase < (sideLen & -(1 << 6)); xBase += (1 << 6)) {
-            var cmpFlags = 0L;
-            for (var xInc = 0; xInc < (1 << 6); xInc += LANES * 2) {
+    // counts above the PGM maximum are clamped, 16 bit values are big-endian
+    private static void transferRowCounts(long[] rowCounts, int x0, int x1,
+                                          Grid grid, byte[] rowsMerged,
+                                          int rowOffset) {
+        var maxValue = grid.maxValue();
+        if (grid.pixelBits() == 8) {
+            for (var x = x0; x < x1; x++) {
+                rowsMerged[rowOffset + x] =
+                        (byte) Math.min(rowCounts[x], maxValue);
+            }
+        } else {
+            for (var x = x0; x < x1; x++) {
+                var count = (int) Math.min(rowCounts[x], maxValue);
+                rowsMerged[rowOffset + 2 * x] = (byte) (count >>> 8);
+                rowsMerged[rowOffset + 2 * x + 1] = (byte) count;
+            }
+        }
+    }
+
+    /**
+     * Vector kernels. Vector operations become machine instructions only when
+     * the JIT compiler sees their species as constants, so the species and
+     * the interleave are chosen when this class is initialized, after the
+     * options set vectorBits and interleave. A JVM thus runs one species
+     * only, and probeKernels times every candidate in a separate JVM.
+     */
+    private static final class Kernels {
+
+        private static final VectorSpecies<Double> SPECIES = vectorBits != 0 ?
+                VectorSpecies.of(double.class, VectorShape.forBitSize(vectorBits)) :
+                DoubleVector.SPECIES_PREFERRED.length() <= 8 ?
+                        DoubleVector.SPECIES_PREFERRED : DoubleVector.SPECIES_512;
+
+        private static final int LANES = SPECIES.length();
+
+        private static final int LANES_LOG =
+                Integer.numberOfTrailingZeros(LANES);
+
+        // same vector size as SPECIES, i.e. twice the lanes, at most 16 lanes
+        // so two vectors of flags still fit in a 64 pixel chunk
+        private static final VectorSpecies<Float> FLOAT_SPECIES =
+                VectorSpecies.of(float.class, SPECIES.vectorShape());
+
+        private static final int FLOAT_LANES = FLOAT_SPECIES.length();
+
+        // same lanes as SPECIES, for iteration counters
+        private static final VectorSpecies<Long> LONG_SPECIES =
+                VectorSpecies.of(long.class, SPECIES.vectorShape());
+
+        private static final int INTERLEAVE = interleave;
+
+        /**
+         * The escape test is done after every block of 5 iterations and after the
+         * last iteration, for any maxIter. Lanes that escaped never get back below
+         * 4, so stopping once all lanes escaped doesn't change the result.
+         * Interleaving more vectors hides latency of the dependent operations in
+         * one vector, but needs more registers, so the best choice depends on
+         * the cpu.
+         */
+        private static void computeChunksVector(double Ci, double[] aCr,
+                                                int x0, int x1, long[] rowChunks,
+                                                int maxIter) {
+            switch (INTERLEAVE) {
+                case 1 -> computeChunksVector1(Ci, aCr, x0, x1, rowChunks, maxIter);
+                case 4 -> computeChunksVector4(Ci, aCr, x0, x1, rowChunks, maxIter);
+                default -> computeChunksVector2(Ci, aCr, x0, x1, rowChunks, maxIter);
+            }
+        }
+
+        private static void computeChunksVector1(double Ci, double[] aCr,
+                                                 int x0, int x1, long[] rowChunks,
+                                                 int maxIter) {
+            var vCi = DoubleVector.broadcast(SPECIES, Ci);
+            var vZeroes = DoubleVector.zero(SPECIES);
+            var vFours = DoubleVector.broadcast(SPECIES, 4.0);
+            var zeroMask = VectorMask.fromLong(SPECIES, 0);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            for (var xBase = x0; xBase < x1; xBase += (1 << 6)) {
+                var cmpFlags = 0L;
+                for (var xInc = 0; xInc < (1 << 6); xInc += LANES) {
+                    var vZr = vZeroes;
+                    var vZi = vZeroes;
+                    var vCr = DoubleVector.fromArray(SPECIES, aCr, xBase + xInc);
+                    var vZrN = vZeroes;
+                    var vZiN = vZeroes;
+                    var cmpMask = zeroMask;
+                    var stop = false;
+                    for (var outer = 0; !stop && outer < blocks; outer++) {
+                        for (var inner = 0; inner < 5; inner++) {
+                            vZi = vZr.add(vZr).mul(vZi).add(vCi);
+                            vZr = vZrN.sub(vZiN).add(vCr);
+                            vZiN = vZi.mul(vZi);
+                            vZrN = vZr.mul(vZr);
+                        }
+                        cmpMask = vZiN.add(vZrN).lt(vFours);
+                        stop = !cmpMask.anyTrue(); // i.e. all false
+                    }
+                    if (!stop && rest != 0) {
+                        for (var inner = 0; inner < rest; inner++) {
+                            vZi = vZr.add(vZr).mul(vZi).add(vCi);
+                            vZr = vZrN.sub(vZiN).add(vCr);
+                            vZiN = vZi.mul(vZi);
+                            vZrN = vZr.mul(vZr);
+                        }
+                        cmpMask = vZiN.add(vZrN).lt(vFours);
+                    }
+                    cmpFlags |= cmpMask.not().toLong() << xInc;
+                }
+                rowChunks[xBase >> 6] = cmpFlags;
+            }
+        }
+
+        private static void computeChunksVector2(double Ci, double[] aCr,
+                                                 int x0, int x1, long[] rowChunks,
+                                                 int maxIter) {
+            var vCi = DoubleVector.broadcast(SPECIES, Ci);
+            var vZeroes = DoubleVector.zero(SPECIES);
+            var vFours = DoubleVector.broadcast(SPECIES, 4.0);
+            var zeroMask = VectorMask.fromLong(SPECIES, 0);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            // (1 << 6) = 64 = length of long in bits
+            for (var xBase = x0; xBase < x1; xBase += (1 << 6)) {
+                var cmpFlags = 0L;
+                for (var xInc = 0; xInc < (1 << 6); xInc += LANES * 2) {
+                    var vZr1 = vZeroes;
+                    var vZr2 = vZeroes;
+                    var vZi1 = vZeroes;
+                    var vZi2 = vZeroes;
+                    var vCr1 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc);
+                    var vCr2 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc + LANES);
+                    var vZrN1 = vZeroes;
+                    var vZrN2 = vZeroes;
+                    var vZiN1 = vZeroes;
+                    var vZiN2 = vZeroes;
+                    var cmpMask1 = zeroMask;
+                    var cmpMask2 = zeroMask;
+                    var stop = false;
+                    // NOTE: beware of NaNs and comparisons with them
+                    //       Inf - Inf = NaN (i.e. not a number)
+                    //       cmp(NaN, <anything>, compOp) = false
+                    //       cmp(<anything>, NaN, compOp) = false
+                    for (var outer = 0; !stop && outer < blocks; outer++) {
+                        for (var inner = 0; inner < 5; inner++) {
+                            vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                            vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                            vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                            vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                            vZiN1 = vZi1.mul(vZi1);
+                            vZiN2 = vZi2.mul(vZi2);
+                            vZrN1 = vZr1.mul(vZr1);
+                            vZrN2 = vZr2.mul(vZr2);
+                        }
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                        stop = !cmpMask1.or(cmpMask2).anyTrue(); // i.e. all false
+                    }
+                    if (!stop && rest != 0) {
+                        for (var inner = 0; inner < rest; inner++) {
+                            vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                            vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                            vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                            vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                            vZiN1 = vZi1.mul(vZi1);
+                            vZiN2 = vZi2.mul(vZi2);
+                            vZrN1 = vZr1.mul(vZr1);
+                            vZrN2 = vZr2.mul(vZr2);
+                        }
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                    }
+                    cmpFlags |= cmpMask1.not().toLong() << xInc;
+                    cmpFlags |= cmpMask2.not().toLong() << (xInc + LANES);
+                }
+                rowChunks[xBase >> 6] = cmpFlags;
+            }
+        }
+
+        private static void computeChunksVector4(double Ci, double[] aCr,
+                                                 int x0, int x1, long[] rowChunks,
+                                                 int maxIter) {
+            var vCi = DoubleVector.broadcast(SPECIES, Ci);
+            var vZeroes = DoubleVector.zero(SPECIES);
+            var vFours = DoubleVector.broadcast(SPECIES, 4.0);
+            var zeroMask = VectorMask.fromLong(SPECIES, 0);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            for (var xBase = x0; xBase < x1; xBase += (1 << 6)) {
+                var cmpFlags = 0L;
+                for (var xInc = 0; xInc < (1 << 6); xInc += LANES * 4) {
+                    var vZr1 = vZeroes;
+                    var vZr2 = vZeroes;
+                    var vZr3 = vZeroes;
+                    var vZr4 = vZeroes;
+                    var vZi1 = vZeroes;
+                    var vZi2 = vZeroes;
+                    var vZi3 = vZeroes;
+                    var vZi4 = vZeroes;
+                    var vCr1 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc);
+                    var vCr2 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc + LANES);
+                    var vCr3 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc + LANES * 2);
+                    var vCr4 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc + LANES * 3);
+                    var vZrN1 = vZeroes;
+                    var vZrN2 = vZeroes;
+                    var vZrN3 = vZeroes;
+                    var vZrN4 = vZeroes;
+                    var vZiN1 = vZeroes;
+                    var vZiN2 = vZeroes;
+                    var vZiN3 = vZeroes;
+                    var vZiN4 = vZeroes;
+                    var cmpMask1 = zeroMask;
+                    var cmpMask2 = zeroMask;
+                    var cmpMask3 = zeroMask;
+                    var cmpMask4 = zeroMask;
+                    var stop = false;
+                    for (var outer = 0; !stop && outer < blocks + 1; outer++) {
+                        var iterations = outer < blocks ? 5 : rest;
+                        if (iterations == 0) {
+                            break;
+                        }
+                        for (var inner = 0; inner < iterations; inner++) {
+                            vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                            vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                            vZi3 = vZr3.add(vZr3).mul(vZi3).add(vCi);
+                            vZi4 = vZr4.add(vZr4).mul(vZi4).add(vCi);
+                            vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                            vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                            vZr3 = vZrN3.sub(vZiN3).add(vCr3);
+                            vZr4 = vZrN4.sub(vZiN4).add(vCr4);
+                            vZiN1 = vZi1.mul(vZi1);
+                            vZiN2 = vZi2.mul(vZi2);
+                            vZiN3 = vZi3.mul(vZi3);
+                            vZiN4 = vZi4.mul(vZi4);
+                            vZrN1 = vZr1.mul(vZr1);
+                            vZrN2 = vZr2.mul(vZr2);
+                            vZrN3 = vZr3.mul(vZr3);
+                            vZrN4 = vZr4.mul(vZr4);
+                        }
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                        cmpMask3 = vZiN3.add(vZrN3).lt(vFours);
+                        cmpMask4 = vZiN4.add(vZrN4).lt(vFours);
+                        stop = !cmpMask1.or(cmpMask2).or(cmpMask3).or(cmpMask4)
+                                .anyTrue(); // i.e. all false
+                    }
+                    cmpFlags |= cmpMask1.not().toLong() << xInc;
+                    cmpFlags |= cmpMask2.not().toLong() << (xInc + LANES);
+                    cmpFlags |= cmpMask3.not().toLong() << (xInc + LANES * 2);
+                    cmpFlags |= cmpMask4.not().toLong() << (xInc + LANES * 3);
+                }
+                rowChunks[xBase >> 6] = cmpFlags;
+            }
+        }
+
+        /**
+         * Same result as computeChunksVector, but lanes known to be inside the set
+         * don't keep the other lanes iterating. A lane is known to be inside if
+         * its point lies in the main cardioid or in the period-2 bulb, or if its
+         * orbit revisits exactly the same (Zr, Zi), as from then on it repeats
+         * forever. The checkpoint for periodicity is moved Brent-style, i.e. after
+         * 1, 2, 4 and 8 blocks of 5 iterations. Only exact matches count, so the
+         * output stays bit-exact.
+         */
+        private static void computeChunksVectorShortcuts(double Ci, double[] aCr,
+                                                         int x0, int x1,
+                                                         long[] rowChunks,
+                                                         int maxIter) {
+            var vCi = DoubleVector.broadcast(SPECIES, Ci);
+            var vZeroes = DoubleVector.zero(SPECIES);
+            var vFours = DoubleVector.broadcast(SPECIES, 4.0);
+            var zeroMask = VectorMask.fromLong(SPECIES, 0);
+            var Ci2 = Ci * Ci;
+            var vCi2 = DoubleVector.broadcast(SPECIES, Ci2);
+            var vCi2Quarter = DoubleVector.broadcast(SPECIES, Ci2 * 0.25);
+            var vQuarters = DoubleVector.broadcast(SPECIES, 0.25);
+            var vOnes = DoubleVector.broadcast(SPECIES, 1.0);
+            var vSixteenths = DoubleVector.broadcast(SPECIES, 1.0 / 16);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            for (var xBase = x0; xBase < x1; xBase += (1 << 6)) {
+                var cmpFlags = 0L;
+                for (var xInc = 0; xInc < (1 << 6); xInc += LANES * 2) {
+                    var vCr1 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc);
+                    var vCr2 = DoubleVector.fromArray(
+                            SPECIES, aCr, xBase + xInc + LANES);
+                    var known1 = knownInterior(vCr1, vCi2, vCi2Quarter,
+                            vQuarters, vOnes, vSixteenths);
+                    var known2 = knownInterior(vCr2, vCi2, vCi2Quarter,
+                            vQuarters, vOnes, vSixteenths);
+                    if (!known1.and(known2).allTrue()) {
+                        var vZr1 = vZeroes;
+                        var vZr2 = vZeroes;
+                        var vZi1 = vZeroes;
+                        var vZi2 = vZeroes;
+                        var vZrN1 = vZeroes;
+                        var vZrN2 = vZeroes;
+                        var vZiN1 = vZeroes;
+                        var vZiN2 = vZeroes;
+                        var vSavedZr1 = vZeroes;
+                        var vSavedZr2 = vZeroes;
+                        var vSavedZi1 = vZeroes;
+                        var vSavedZi2 = vZeroes;
+                        var cmpMask1 = zeroMask;
+                        var cmpMask2 = zeroMask;
+                        var stop = false;
+                        for (var outer = 0; !stop && outer < blocks; outer++) {
+                            for (var inner = 0; inner < 5; inner++) {
+                                vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                                vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                                vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                                vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                                vZiN1 = vZi1.mul(vZi1);
+                                vZiN2 = vZi2.mul(vZi2);
+                                vZrN1 = vZr1.mul(vZr1);
+                                vZrN2 = vZr2.mul(vZr2);
+                            }
+                            cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                            cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                            known1 = known1.or(vZr1.eq(vSavedZr1)
+                                    .and(vZi1.eq(vSavedZi1)));
+                            known2 = known2.or(vZr2.eq(vSavedZr2)
+                                    .and(vZi2.eq(vSavedZi2)));
+                            if ((outer & (outer + 1)) == 0) {
+                                vSavedZr1 = vZr1;
+                                vSavedZr2 = vZr2;
+                                vSavedZi1 = vZi1;
+                                vSavedZi2 = vZi2;
+                            }
+                            // escaped lanes never come back below 4, known lanes
+                            // never escape, so iterating further changes nothing
+                            stop = !cmpMask1.andNot(known1)
+                                    .or(cmpMask2.andNot(known2)).anyTrue();
+                        }
+                        if (!stop && rest != 0) {
+                            for (var inner = 0; inner < rest; inner++) {
+                                vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                                vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                                vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                                vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                                vZiN1 = vZi1.mul(vZi1);
+                                vZiN2 = vZi2.mul(vZi2);
+                                vZrN1 = vZr1.mul(vZr1);
+                                vZrN2 = vZr2.mul(vZr2);
+                            }
+                            cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                            cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                        }
+                        known1 = known1.or(cmpMask1);
+                        known2 = known2.or(cmpMask2);
+                    }
+                    cmpFlags |= known1.not().toLong() << xInc;
+                    cmpFlags |= known2.not().toLong() << (xInc + LANES);
+                }
+                rowChunks[xBase >> 6] = cmpFlags;
+            }
+        }
+
+        /**
+         * Same structure as computeChunksVector, but escape is tested after every
+         * iteration and a counter per lane is incremented while the lane stays
+         * below 4, i.e. the count is the number of iterations before escape, or
+         * maxIter inside the set. Checking whether to stop still happens only after
+         * every block of 5 iterations.
+         */
+        private static void computeCountsVector(double Ci, double[] aCr,
+                                                int x0, int x1, long[] rowCounts,
+                                                int maxIter) {
+            var vCi = DoubleVector.broadcast(SPECIES, Ci);
+            var vZeroes = DoubleVector.zero(SPECIES);
+            var vFours = DoubleVector.broadcast(SPECIES, 4.0);
+            var vCountZeroes = LongVector.zero(LONG_SPECIES);
+            var vCountOnes = LongVector.broadcast(LONG_SPECIES, 1);
+            var zeroMask = VectorMask.fromLong(SPECIES, 0);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            for (var x = x0; x < x1; x += LANES * 2) {
                 var vZr1 = vZeroes;
                 var vZr2 = vZeroes;
                 var vZi1 = vZeroes;
                 var vZi2 = vZeroes;
-                var vCr1 = DoubleVector.fromArray(
-                        SPECIES, aCr, xBase + xInc);
-                var vCr2 = DoubleVector.fromArray(
-                        SPECIES, aCr, xBase + xInc + LANES);
+                var vCr1 = DoubleVector.fromArray(SPECIES, aCr, x);
+                var vCr2 = DoubleVector.fromArray(SPECIES, aCr, x + LANES);
                 var vZrN1 = vZeroes;
                 var vZrN2 = vZeroes;
                 var vZiN1 = vZeroes;
                 var vZiN2 = vZeroes;
+                var vCount1 = vCountZeroes;
+                var vCount2 = vCountZeroes;
                 var cmpMask1 = zeroMask;
                 var cmpMask2 = zeroMask;
                 var stop = false;
-                // NOTE: beware of NaNs and comparisons with them
-                //       Inf - Inf = NaN (i.e. not a number)
-                //       cmp(NaN, <anything>, compOp) = false
-                //       cmp(<anything>, NaN, compOp) = false
-                for (var outer = 0; !stop && outer < 10; outer++) {
+                for (var outer = 0; !stop && outer < blocks; outer++) {
                     for (var inner = 0; inner < 5; inner++) {
                         vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
                         vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
@@ -140,22 +1529,200 @@ public class mandelbrot_panama_vector {
                         vZiN2 = vZi2.mul(vZi2);
                         vZrN1 = vZr1.mul(vZr1);
                         vZrN2 = vZr2.mul(vZr2);
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                        vCount1 = vCount1.add(vCountOnes,
+                                cmpMask1.cast(LONG_SPECIES));
+                        vCount2 = vCount2.add(vCountOnes,
+                                cmpMask2.cast(LONG_SPECIES));
                     }
-                    cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
-                    cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
                     stop = !cmpMask1.or(cmpMask2).anyTrue(); // i.e. all false
                 }
-                cmpFlags |= cmpMask1.not().toLong() << xInc;
-                cmpFlags |= cmpMask2.not().toLong() << (xInc + LANES);
+                if (!stop) {
+                    for (var inner = 0; inner < rest; inner++) {
+                        vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                        vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                        vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                        vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                        vZiN1 = vZi1.mul(vZi1);
+                        vZiN2 = vZi2.mul(vZi2);
+                        vZrN1 = vZr1.mul(vZr1);
+                        vZrN2 = vZr2.mul(vZr2);
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                        vCount1 = vCount1.add(vCountOnes,
+                                cmpMask1.cast(LONG_SPECIES));
+                        vCount2 = vCount2.add(vCountOnes,
+                                cmpMask2.cast(LONG_SPECIES));
+                    }
+                }
+                vCount1.intoArray(rowCounts, x);
+                vCount2.intoArray(rowCounts, x + LANES);
+            }
+        }
+
+        // same structure as computeChunksVector, with twice the lanes per vector
+        private static void computeChunksFloat(float Ci, float[] aCr,
+                                               int x0, int x1, long[] rowChunks,
+                                               int maxIter) {
+            var vCi = FloatVector.broadcast(FLOAT_SPECIES, Ci);
+            var vZeroes = FloatVector.zero(FLOAT_SPECIES);
+            var vFours = FloatVector.broadcast(FLOAT_SPECIES, 4.0f);
+            var zeroMask = VectorMask.fromLong(FLOAT_SPECIES, 0);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            for (var xBase = x0; xBase < x1; xBase += (1 << 6)) {
+                var cmpFlags = 0L;
+                for (var xInc = 0; xInc < (1 << 6); xInc += FLOAT_LANES * 2) {
+                    var vZr1 = vZeroes;
+                    var vZr2 = vZeroes;
+                    var vZi1 = vZeroes;
+                    var vZi2 = vZeroes;
+                    var vCr1 = FloatVector.fromArray(
+                            FLOAT_SPECIES, aCr, xBase + xInc);
+                    var vCr2 = FloatVector.fromArray(
+                            FLOAT_SPECIES, aCr, xBase + xInc + FLOAT_LANES);
+                    var vZrN1 = vZeroes;
+                    var vZrN2 = vZeroes;
+                    var vZiN1 = vZeroes;
+                    var vZiN2 = vZeroes;
+                    var cmpMask1 = zeroMask;
+                    var cmpMask2 = zeroMask;
+                    var stop = false;
+                    for (var outer = 0; !stop && outer < blocks; outer++) {
+                        for (var inner = 0; inner < 5; inner++) {
+                            vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                            vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                            vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                            vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                            vZiN1 = vZi1.mul(vZi1);
+                            vZiN2 = vZi2.mul(vZi2);
+                            vZrN1 = vZr1.mul(vZr1);
+                            vZrN2 = vZr2.mul(vZr2);
+                        }
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                        stop = !cmpMask1.or(cmpMask2).anyTrue(); // i.e. all false
+                    }
+                    if (!stop && rest != 0) {
+                        for (var inner = 0; inner < rest; inner++) {
+                            vZi1 = vZr1.add(vZr1).mul(vZi1).add(vCi);
+                            vZi2 = vZr2.add(vZr2).mul(vZi2).add(vCi);
+                            vZr1 = vZrN1.sub(vZiN1).add(vCr1);
+                            vZr2 = vZrN2.sub(vZiN2).add(vCr2);
+                            vZiN1 = vZi1.mul(vZi1);
+                            vZiN2 = vZi2.mul(vZi2);
+                            vZrN1 = vZr1.mul(vZr1);
+                            vZrN2 = vZr2.mul(vZr2);
+                        }
+                        cmpMask1 = vZiN1.add(vZrN1).lt(vFours);
+                        cmpMask2 = vZiN2.add(vZrN2).lt(vFours);
+                    }
+                    cmpFlags |= cmpMask1.not().toLong() << xInc;
+                    cmpFlags |= cmpMask2.not().toLong() << (xInc + FLOAT_LANES);
+                }
+                rowChunks[xBase >> 6] = cmpFlags;
             }
-            rowChunks[xBase >> 6] = cmpFlags;
+        }
+
+        /**
+         * Kernel for deep zooms, where neighbouring pixels are too close to each
+         * other for doubles. Every value is an unevaluated sum hi + lo of two
+         * doubles; products of high parts get their rounding error from fma.
+         * It's several times slower than the double kernel, so it iterates one
+         * vector at a time and tests for escape using high parts only.
+         */
+        private static void computeChunksDoubleDouble(double CiHi, double CiLo,
+                                                      double[] aCrHi,
+                                                      double[] aCrLo,
+                                                      int x0, int x1,
+                                                      long[] rowChunks,
+                                                      int maxIter) {
+            var vCiHi = DoubleVector.broadcast(SPECIES, CiHi);
+            var vCiLo = DoubleVector.broadcast(SPECIES, CiLo);
+            var vZeroes = DoubleVector.zero(SPECIES);
+            var vFours = DoubleVector.broadcast(SPECIES, 4.0);
+            var zeroMask = VectorMask.fromLong(SPECIES, 0);
+            var blocks = maxIter / 5;
+            var rest = maxIter % 5;
+            for (var xBase = x0; xBase < x1; xBase += (1 << 6)) {
+                var cmpFlags = 0L;
+                for (var xInc = 0; xInc < (1 << 6); xInc += LANES) {
+                    var vCrHi = DoubleVector.fromArray(SPECIES, aCrHi, xBase + xInc);
+                    var vCrLo = DoubleVector.fromArray(SPECIES, aCrLo, xBase + xInc);
+                    var vZrHi = vZeroes;
+                    var vZrLo = vZeroes;
+                    var vZiHi = vZeroes;
+                    var vZiLo = vZeroes;
+                    var cmpMask = zeroMask;
+                    var stop = false;
+                    for (var outer = 0; !stop && outer < blocks + 1; outer++) {
+                        var iterations = outer < blocks ? 5 : rest;
+                        if (iterations == 0) {
+                            break;
+                        }
+                        for (var inner = 0; inner < iterations; inner++) {
+                            // Zr^2, Zi^2 and Zr*Zi, low parts of low parts dropped
+                            var vRrHi = vZrHi.mul(vZrHi);
+                            var vRrLo = vZrHi.fma(vZrHi, vRrHi.neg())
+                                    .add(vZrHi.add(vZrHi).mul(vZrLo));
+                            var vIiHi = vZiHi.mul(vZiHi);
+                            var vIiLo = vZiHi.fma(vZiHi, vIiHi.neg())
+                                    .add(vZiHi.add(vZiHi).mul(vZiLo));
+                            var vRiHi = vZrHi.mul(vZiHi);
+                            var vRiLo = vZrHi.fma(vZiHi, vRiHi.neg())
+                                    .add(vZrHi.mul(vZiLo)).add(vZrLo.mul(vZiHi));
+                            // Zr = Zr^2 - Zi^2 + Cr
+                            var vSum = vRrHi.sub(vIiHi);
+                            var vErr = twoSumError(vRrHi, vIiHi.neg(), vSum)
+                                    .add(vRrLo).sub(vIiLo);
+                            var vHi = vSum.add(vErr);
+                            var vLo = vErr.sub(vHi.sub(vSum));
+                            vSum = vHi.add(vCrHi);
+                            vErr = twoSumError(vHi, vCrHi, vSum).add(vLo).add(vCrLo);
+                            vZrHi = vSum.add(vErr);
+                            vZrLo = vErr.sub(vZrHi.sub(vSum));
+                            // Zi = 2 * Zr * Zi + Ci
+                            vSum = vRiHi.add(vRiHi).add(vCiHi);
+                            vErr = twoSumError(vRiHi.add(vRiHi), vCiHi, vSum)
+                                    .add(vRiLo.add(vRiLo)).add(vCiLo);
+                            vZiHi = vSum.add(vErr);
+                            vZiLo = vErr.sub(vZiHi.sub(vSum));
+                        }
+                        cmpMask = vZrHi.mul(vZrHi).add(vZiHi.mul(vZiHi)).lt(vFours);
+                        stop = !cmpMask.anyTrue(); // i.e. all false
+                    }
+                    cmpFlags |= cmpMask.not().toLong() << xInc;
+                }
+                rowChunks[xBase >> 6] = cmpFlags;
+            }
+        }
+
+        private static DoubleVector twoSumError(DoubleVector a, DoubleVector b,
+                                                DoubleVector sum) {
+            var bVirtual = sum.sub(a);
+            return a.sub(sum.sub(bVirtual)).add(b.sub(bVirtual));
+        }
+
+        // closed-form tests for the main cardioid and the period-2 bulb
+        private static VectorMask<Double> knownInterior(
+                DoubleVector vCr, DoubleVector vCi2, DoubleVector vCi2Quarter,
+                DoubleVector vQuarters, DoubleVector vOnes,
+                DoubleVector vSixteenths) {
+            var vXq = vCr.sub(vQuarters);
+            var vQ = vXq.mul(vXq).add(vCi2);
+            var inCardioid = vQ.mul(vQ.add(vXq)).lt(vCi2Quarter);
+            var vXb = vCr.add(vOnes);
+            var inBulb = vXb.mul(vXb).add(vCi2).lt(vSixteenths);
+            return inCardioid.or(inBulb);
         }
     }
 
     private static void transferRowFlags(long[] rowChunks,
+                                         int chunksStart, int chunksEnd,
                                          byte[] bitsReversalMapping,
                                          byte[] rowsMerged, int rowOffset) {
-        for (var i = 0; i < rowChunks.length; i++) {
+        for (var i = chunksStart; i < chunksEnd; i++) {
             var group = ~rowChunks[i];
             for (var j = 7; j >= 0; j--) {
                 rowsMerged[rowOffset + i * 8 + j] =
@@ -164,15 +1731,41 @@ public class mandelbrot_panama_vector {
         }
     }
 
-    private static void computeRemainderScalar(double Ci, double[] aCr,
+    // for kernels computing whole chunks, i.e. also pixels past the end of row;
+    // a partial last byte is right-aligned, the same as in computeScalar, so
+    // that all kernels give the same bytes for the same pixels
+    private static void transferPaddedRowFlags(long[] rowChunks, int x0, int x1,
+                                               int width,
+                                               byte[] bitsReversalMapping,
                                                byte[] rowsMerged,
                                                int rowOffset) {
-        computeScalar(Ci, aCr, rowsMerged, rowOffset, true);
+        var fullChunksEnd = x1 >> 6;
+        transferRowFlags(rowChunks, x0 >> 6, fullChunksEnd,
+                bitsReversalMapping, rowsMerged, rowOffset);
+        if (x1 == width && (width & 63) != 0) {
+            // pixels past the end of row count as escaped, i.e. 0 bits
+            var group = ~(rowChunks[fullChunksEnd] | -1L << (width & 63));
+            for (var j = 0; j < (((width & 63) + 7) >> 3); j++) {
+                rowsMerged[rowOffset + fullChunksEnd * 8 + j] =
+                        bitsReversalMapping[0xff & (byte) (group >>> (j * 8))];
+            }
+            if ((width & 7) != 0) {
+                var lastByte = rowOffset + (width >> 3);
+                rowsMerged[lastByte] =
+                        (byte) ((0xff & rowsMerged[lastByte]) >>> (8 - (width & 7)));
+            }
+        }
+    }
+
+    private static void computeRemainderScalar(double Ci, double[] aCr,
+                                               byte[] rowsMerged,
+                                               int rowOffset, int maxIter) {
+        computeScalar(Ci, aCr, rowsMerged, rowOffset, true, maxIter);
     }
 
     private static void computeScalar(double Ci, double[] aCr,
                                       byte[] rowsMerged, int rowOffset,
-                                      boolean remainderOnly) {
+                                      boolean remainderOnly, int maxIter) {
         var sideLen = aCr.length;
         var startX = remainderOnly ? sideLen & -(1 << 6) : 0;
         var bits = 0;
@@ -180,7 +1773,7 @@ public class mandelbrot_panama_vector {
             var Zr = 0.0;
             var Zi = 0.0;
             var Cr = aCr[x];
-            var i = 50;
+            var i = maxIter;
             var ZrN = 0.0;
             var ZiN = 0.0;
             do {
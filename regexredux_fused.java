@@ -0,0 +1,1013 @@
+/*
+   The Computer Language Benchmarks Game
+   https://salsa.debian.org/benchmarksgame-team/benchmarksgame/
+
+   based on regex-redux Java #3 program contributed by Francois Green
+*/
+
+import java.io.*;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.*;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.*;
+
+public class regexredux_fused {
+
+    private static final int MIN_SEGMENT_LENGTH = 1 << 20;
+
+    public static void main(String[] args) throws IOException {
+        int segments = 0;
+        boolean fusedSubstitution = true;
+        boolean variantsAutomaton = true;
+        for (String option : args) {
+            if (option.startsWith("--segments=")) {
+                segments = Integer.parseInt(option.substring("--segments=".length()));
+                if (segments <= 0) {
+                    throw new IllegalArgumentException("segments count must be positive");
+                }
+            } else if (option.equals("--substitution=fused")) {
+                fusedSubstitution = true;
+            } else if (option.equals("--substitution=chain")) {
+                fusedSubstitution = false;
+            } else if (option.equals("--variants=automaton")) {
+                variantsAutomaton = true;
+            } else if (option.equals("--variants=regex")) {
+                variantsAutomaton = false;
+            } else {
+                throw new IllegalArgumentException("unknown option: " + option);
+            }
+        }
+
+        // strip ">.*\n|\n" while reading, so the raw input is never kept
+        int initialLength = 0;
+        byte[] cleaned = new byte[Math.max(System.in.available(), 65536)];
+        int cleanedLength = 0;
+        {
+            byte[] buf = new byte[65536];
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            boolean inHeader = false;
+            int count;
+            while ((count = System.in.read(buf)) > 0) {
+                initialLength += count;
+                if (cleaned.length - cleanedLength < count) {
+                    cleaned = Arrays.copyOf(cleaned,
+                            Math.max(cleaned.length * 2, cleanedLength + count));
+                }
+                for (int i = 0; i < count; i++) {
+                    byte b = buf[i];
+                    if (inHeader) {
+                        if (b == '\n') {
+                            header.reset();
+                            inHeader = false;
+                        } else if (b == '\r') {
+                            // the pattern's dot doesn't match '\r', so this
+                            // line is no header and is kept as it is
+                            if (cleaned.length - cleanedLength < header.size() + count - i) {
+                                cleaned = Arrays.copyOf(cleaned, Math.max(cleaned.length * 2,
+                                        cleanedLength + header.size() + count - i));
+                            }
+                            System.arraycopy(header.toByteArray(), 0,
+                                    cleaned, cleanedLength, header.size());
+                            cleanedLength += header.size();
+                            cleaned[cleanedLength++] = b;
+                            header.reset();
+                            inHeader = false;
+                        } else {
+                            header.write(b);
+                        }
+                    } else if (b == '>') {
+                        header.write(b);
+                        inHeader = true;
+                    } else if (b != '\n') {
+                        cleaned[cleanedLength++] = b;
+                    }
+                }
+            }
+            // a header without a newline doesn't match the pattern
+            if (inHeader) {
+                cleaned = Arrays.copyOf(cleaned, cleanedLength + header.size());
+                System.arraycopy(header.toByteArray(), 0,
+                        cleaned, cleanedLength, header.size());
+                cleanedLength += header.size();
+            }
+        }
+
+        // the regex paths scan the bytes through a view, nothing is decoded
+        final byte[] sequenceBytes = cleaned;
+        final int sequenceBytesLength = cleanedLength;
+        final ByteSequence sequence = new ByteSequence(sequenceBytes, 0, sequenceBytesLength);
+        final boolean useFusedSubstitution = fusedSubstitution;
+
+        CompletableFuture<Integer> replacements = CompletableFuture.supplyAsync(() -> {
+            final Map<String, String> iub = new LinkedHashMap<>();
+            iub.put("tHa[Nt]", "<4>");
+            iub.put("aND|caN|Ha[DS]|WaS", "<3>");
+            iub.put("a[NSt]|BY", "<2>");
+            iub.put("<[^>]*>", "|");
+            iub.put("\\|[^|][^|]*\\|", "-");
+
+            FusedSubstitution fused = useFusedSubstitution ? FusedSubstitution.of(iub) : null;
+            if (fused != null) {
+                int length = fused.resultLength(sequenceBytes, sequenceBytesLength);
+                if (length >= 0) {
+                    return length;
+                }
+            }
+
+            return substituteAll(iub, sequenceBytes, sequenceBytesLength);
+        });
+
+        final int codeLength = sequence.length();
+
+        final List<String> variants = Arrays.asList("agggtaaa|tttaccct",
+                "[cgt]gggtaaa|tttaccc[acg]",
+                "a[act]ggtaaa|tttacc[agt]t",
+                "ag[act]gtaaa|tttac[agt]ct",
+                "agg[act]taaa|ttta[agt]cct",
+                "aggg[acg]aaa|ttt[cgt]ccct",
+                "agggt[cgt]aa|tt[acg]accct",
+                "agggta[cgt]a|t[acg]taccct",
+                "agggtaa[cgt]|[acg]ttaccct");
+
+        final Map<String, Long> results = new HashMap<>();
+        VariantAutomaton automaton = variantsAutomaton ? VariantAutomaton.of(variants) : null;
+        if (automaton != null) {
+            long[] counts = automaton.count(sequenceBytes, sequenceBytesLength);
+            for (int variant = 0; variant < variants.size(); variant++) {
+                results.put(variants.get(variant), counts[variant]);
+            }
+        } else {
+            // every (variant, segment) pair is a separate task, so the work spreads
+            // past nine cores; see mergeCounts for how the boundaries are handled
+            final int segmentCount = segments > 0 ? segments : Math.max(1, Math.min(
+                    (4 * ForkJoinPool.getCommonPoolParallelism() + variants.size() - 1) / variants.size(),
+                    codeLength / MIN_SEGMENT_LENGTH));
+            final int segmentLength = Math.max((codeLength + segmentCount - 1) / segmentCount, 1);
+            final List<Pattern> patterns = variants.stream().map(Pattern::compile).collect(toList());
+            final SegmentCount[][] segmentCounts = new SegmentCount[variants.size()][segmentCount];
+
+            IntStream.range(0, variants.size() * segmentCount).parallel().forEach(task -> {
+                int variant = task / segmentCount;
+                int segment = task % segmentCount;
+                int maxMatchLength = maxMatchLength(variants.get(variant));
+                if (maxMatchLength < 0 && segment > 0) {
+                    return;
+                }
+                int from = (int) Math.min((long) segment * segmentLength, codeLength);
+                int to = maxMatchLength < 0 ? codeLength : Math.min(from + segmentLength, codeLength);
+                int limit = maxMatchLength < 0 ? codeLength : Math.min(to + Math.max(maxMatchLength - 1, 0), codeLength);
+                segmentCounts[variant][segment] = countMatches(patterns.get(variant), sequence, from, to, limit);
+            });
+
+            for (int variant = 0; variant < variants.size(); variant++) {
+                results.put(variants.get(variant),
+                        mergeCounts(patterns.get(variant), sequence, segmentCounts[variant], segmentLength));
+            }
+        }
+
+        variants.forEach(variant -> System.out.println(variant + " " + results.get(variant)));
+
+        System.out.println();
+        System.out.println(initialLength);
+        System.out.println(codeLength);
+        System.out.println(replacements.join());
+    }
+
+    /**
+     * Computes the length of the result of a chain of global substitutions in
+     * one pass. It handles tables made only of the two pattern shapes the
+     * benchmark uses: alternations of fixed-length sequences of literals and
+     * character classes, e.g. {@code aND|caN|Ha[DS]|WaS}, and delimited runs,
+     * e.g. {@code <[^>]*>}, with literal replacements. Every substitution is a
+     * stage streaming its output in chunks to the next one, so the sequence is
+     * read once and no sequence-sized buffer is allocated. Only a delimited
+     * run that isn't closed yet is held back whole, up to MAX_HELD_BACK bytes.
+     * Stages keep state, so an instance must not be used by two threads at
+     * once.
+     */
+    static final class FusedSubstitution {
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        // longer unclosed runs make resultLength give up, so memory stays
+        // bounded also for input that never closes a run
+        private static final int MAX_HELD_BACK = 1 << 20;
+
+        private final List<Stage> stages;
+
+        private FusedSubstitution(List<Stage> stages) {
+            this.stages = stages;
+        }
+
+        /**
+         * Returns null if any pattern or replacement has a form not handled
+         * here, in which case the regular substitution chain has to be used.
+         */
+        static FusedSubstitution of(Map<String, String> table) {
+            List<Stage> stages = new ArrayList<>();
+            for (Map.Entry<String, String> entry : table.entrySet()) {
+                String replacement = entry.getValue();
+                if (!replacement.chars().allMatch(c -> c < 128 && c != '$' && c != '\\')) {
+                    return null;
+                }
+                byte[] replacementBytes = replacement.getBytes(StandardCharsets.US_ASCII);
+                List<List<Atom>> alternatives = parseAlternatives(entry.getKey());
+                if (alternatives == null) {
+                    return null;
+                }
+                Stage stage = DelimitedStage.of(alternatives, replacementBytes);
+                if (stage == null) {
+                    stage = LiteralsStage.of(alternatives, replacementBytes);
+                }
+                if (stage == null) {
+                    return null;
+                }
+                stages.add(stage);
+            }
+            return new FusedSubstitution(stages);
+        }
+
+        /**
+         * Returns -1 if a stage would have to hold back more than MAX_HELD_BACK
+         * bytes, in which case the regular substitution chain has to be used.
+         */
+        int resultLength(byte[] input, int length) {
+            ByteChunk chunk = new ByteChunk(CHUNK_SIZE);
+            ByteChunk[] outputs = new ByteChunk[stages.size()];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = new ByteChunk(CHUNK_SIZE);
+                stages.get(i).reset();
+            }
+            long resultLength = 0;
+            int offset = 0;
+            boolean last;
+            do {
+                int count = Math.min(CHUNK_SIZE, length - offset);
+                last = offset + count == length;
+                chunk.length = 0;
+                chunk.append(input, offset, count);
+                offset += count;
+                ByteChunk current = chunk;
+                for (int i = 0; i < outputs.length; i++) {
+                    outputs[i].length = 0;
+                    if (!stages.get(i).process(current, last, outputs[i])) {
+                        return -1;
+                    }
+                    current = outputs[i];
+                }
+                resultLength += current.length;
+            } while (!last);
+            return Math.toIntExact(resultLength);
+        }
+
+        /**
+         * A set of bytes, optionally repeated zero or more times.
+         */
+        record Atom(boolean[] bytes, boolean repeated) {
+        }
+
+        /**
+         * Parses alternations of literals, escaped punctuation and character
+         * classes, optionally followed by {@code *}. Returns null for any other
+         * syntax, also for the dot since engines disagree on line terminators.
+         */
+        static List<List<Atom>> parseAlternatives(String pattern) {
+            List<List<Atom>> alternatives = new ArrayList<>();
+            List<Atom> current = new ArrayList<>();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                switch (c) {
+                    case '|' -> {
+                        alternatives.add(current);
+                        current = new ArrayList<>();
+                    }
+                    case '\\' -> {
+                        if (i + 1 == pattern.length() || !isPunctuation(pattern.charAt(i + 1))) {
+                            return null;
+                        }
+                        current.add(new Atom(single(pattern.charAt(++i)), false));
+                    }
+                    case '[' -> {
+                        boolean[] bytes = new boolean[256];
+                        int end = i + 1;
+                        boolean negated = end < pattern.length() && pattern.charAt(end) == '^';
+                        if (negated) {
+                            end++;
+                        }
+                        int first = end;
+                        while (end < pattern.length() && (pattern.charAt(end) != ']' || end == first)) {
+                            char from = pattern.charAt(end);
+                            if (from == '\\') {
+                                if (end + 1 == pattern.length() || !isPunctuation(pattern.charAt(end + 1))) {
+                                    return null;
+                                }
+                                from = pattern.charAt(++end);
+                            } else if (from == '[' || from == '&' || from >= 128) {
+                                // nested classes and intersections
+                                return null;
+                            }
+                            char to = from;
+                            if (end + 2 < pattern.length() && pattern.charAt(end + 1) == '-'
+                                    && pattern.charAt(end + 2) != ']') {
+                                to = pattern.charAt(end + 2);
+                                if (to == '\\' || to == '[' || to >= 128 || to < from) {
+                                    return null;
+                                }
+                                end += 2;
+                            }
+                            for (char b = from; b <= to; b++) {
+                                bytes[b] = true;
+                            }
+                            end++;
+                        }
+                        if (end >= pattern.length()) {
+                            return null;
+                        }
+                        if (negated) {
+                            for (int b = 0; b < bytes.length; b++) {
+                                bytes[b] = !bytes[b];
+                            }
+                        }
+                        current.add(new Atom(bytes, false));
+                        i = end;
+                    }
+                    case '*' -> {
+                        if (current.isEmpty() || current.get(current.size() - 1).repeated()) {
+                            return null;
+                        }
+                        current.set(current.size() - 1, new Atom(current.get(current.size() - 1).bytes(), true));
+                    }
+                    case '.', '(', ')', '?', '+', '{', '}', '^', '$', ']' -> {
+                        return null;
+                    }
+                    default -> {
+                        if (c >= 128) {
+                            return null;
+                        }
+                        current.add(new Atom(single(c), false));
+                    }
+                }
+            }
+            alternatives.add(current);
+            return alternatives;
+        }
+
+        private static boolean isPunctuation(char c) {
+            return c < 128 && !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+        }
+
+        private static boolean[] single(char c) {
+            boolean[] bytes = new boolean[256];
+            bytes[c] = true;
+            return bytes;
+        }
+
+        /**
+         * Returns the only byte in the set, or -1 if there are none or more.
+         */
+        private static int onlyByte(boolean[] bytes) {
+            int only = -1;
+            for (int b = 0; b < bytes.length; b++) {
+                if (bytes[b]) {
+                    if (only >= 0) {
+                        return -1;
+                    }
+                    only = b;
+                }
+            }
+            return only;
+        }
+
+        static final class ByteChunk {
+            byte[] bytes;
+            int length;
+
+            ByteChunk(int capacity) {
+                bytes = new byte[capacity];
+            }
+
+            void append(byte b) {
+                ensureCapacity(1);
+                bytes[length++] = b;
+            }
+
+            void append(byte[] source, int from, int count) {
+                ensureCapacity(count);
+                System.arraycopy(source, from, bytes, length, count);
+                length += count;
+            }
+
+            void ensureCapacity(int extra) {
+                if (bytes.length - length < extra) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+                }
+            }
+        }
+
+        abstract static class Stage {
+            abstract void reset();
+
+            /**
+             * Appends the output for the given input to out. Output that
+             * depends on input not seen yet is held back until the last call.
+             * Returns false if that would be more than MAX_HELD_BACK bytes, and
+             * then the output is incomplete.
+             */
+            abstract boolean process(ByteChunk in, boolean last, ByteChunk out);
+        }
+
+        /**
+         * Alternation of fixed-length sequences of byte sets. The first
+         * alternative matching at the leftmost position wins, as in a
+         * backtracking engine.
+         */
+        static final class LiteralsStage extends Stage {
+            private final boolean[][][] alternatives;
+            // indexed with first byte * 257 + second byte, or + 256 for no
+            // second byte; tells whether some alternative may match there
+            private final boolean[] candidates = new boolean[256 * 257];
+            private final int maxLength;
+            private final byte[] replacement;
+            // input not decided yet, i.e. shorter than the longest match
+            private final ByteChunk pending = new ByteChunk(CHUNK_SIZE);
+
+            private LiteralsStage(boolean[][][] alternatives, byte[] replacement) {
+                this.alternatives = alternatives;
+                this.replacement = replacement;
+                int maxLength = 0;
+                for (boolean[][] alternative : alternatives) {
+                    maxLength = Math.max(maxLength, alternative.length);
+                    for (int first = 0; first < 256; first++) {
+                        for (int second = 0; second < 257 && alternative[0][first]; second++) {
+                            candidates[first * 257 + second] |= alternative.length == 1
+                                    || second < 256 && alternative[1][second];
+                        }
+                    }
+                }
+                this.maxLength = maxLength;
+            }
+
+            static LiteralsStage of(List<List<Atom>> alternatives, byte[] replacement) {
+                boolean[][][] sets = new boolean[alternatives.size()][][];
+                for (int i = 0; i < sets.length; i++) {
+                    List<Atom> atoms = alternatives.get(i);
+                    if (atoms.isEmpty()) {
+                        return null;
+                    }
+                    sets[i] = new boolean[atoms.size()][];
+                    for (int j = 0; j < atoms.size(); j++) {
+                        if (atoms.get(j).repeated()) {
+                            return null;
+                        }
+                        sets[i][j] = atoms.get(j).bytes();
+                    }
+                }
+                return new LiteralsStage(sets, replacement);
+            }
+
+            @Override
+            void reset() {
+                pending.length = 0;
+            }
+
+            @Override
+            boolean process(ByteChunk in, boolean last, ByteChunk out) {
+                pending.append(in.bytes, 0, in.length);
+                byte[] bytes = pending.bytes;
+                int length = pending.length;
+                int limit = last ? length : length - (maxLength - 1);
+                int i = 0;
+                int runStart = 0;
+                while (i < limit) {
+                    i = findCandidate(bytes, i, Math.min(limit, length - 1));
+                    if (i == limit) {
+                        break;
+                    }
+                    // only the last byte of the whole input has no second byte
+                    int second = i + 1 < length ? bytes[i + 1] & 0xff : 256;
+                    int matched = candidates[(bytes[i] & 0xff) * 257 + second]
+                            ? matchLength(bytes, i, length) : 0;
+                    if (matched > 0) {
+                        out.append(bytes, runStart, i - runStart);
+                        out.append(replacement, 0, replacement.length);
+                        i += matched;
+                        runStart = i;
+                    } else {
+                        i++;
+                    }
+                }
+                out.append(bytes, runStart, i - runStart);
+                // a match may end past the limit, but never past the length
+                System.arraycopy(bytes, i, bytes, 0, length - i);
+                pending.length = length - i;
+                return true;
+            }
+
+            /**
+             * Returns the first position in [from, to) where a match may start,
+             * or to if there's none.
+             */
+            private int findCandidate(byte[] bytes, int from, int to) {
+                int i = from;
+                while (i < to && !candidates[(bytes[i] & 0xff) * 257 + (bytes[i + 1] & 0xff)]) {
+                    i++;
+                }
+                return i;
+            }
+
+            private int matchLength(byte[] bytes, int start, int length) {
+                next:
+                for (boolean[][] alternative : alternatives) {
+                    if (start + alternative.length > length) {
+                        continue;
+                    }
+                    for (int j = 0; j < alternative.length; j++) {
+                        if (!alternative[j][bytes[start + j] & 0xff]) {
+                            continue next;
+                        }
+                    }
+                    return alternative.length;
+                }
+                return 0;
+            }
+        }
+
+        /**
+         * Pattern of the form {@code O[^C]...[^C][^C]*C}, i.e. an opening byte,
+         * at least minInner bytes other than the closing byte, and the closing
+         * byte. Such a match is decided by the first closing byte after the
+         * opening one, however far it is.
+         */
+        static final class DelimitedStage extends Stage {
+            private final byte open;
+            private final byte close;
+            private final int minInner;
+            private final byte[] replacement;
+            private final ByteChunk inner = new ByteChunk(64);
+            private boolean inside;
+
+            private DelimitedStage(byte open, byte close, int minInner, byte[] replacement) {
+                this.open = open;
+                this.close = close;
+                this.minInner = minInner;
+                this.replacement = replacement;
+            }
+
+            static DelimitedStage of(List<List<Atom>> alternatives, byte[] replacement) {
+                if (alternatives.size() != 1 || alternatives.get(0).size() < 3) {
+                    return null;
+                }
+                List<Atom> atoms = alternatives.get(0);
+                Atom first = atoms.get(0);
+                Atom last = atoms.get(atoms.size() - 1);
+                Atom repeated = atoms.get(atoms.size() - 2);
+                int open = onlyByte(first.bytes());
+                int close = onlyByte(last.bytes());
+                if (open < 0 || close < 0 || first.repeated() || last.repeated() || !repeated.repeated()) {
+                    return null;
+                }
+                for (Atom atom : atoms.subList(1, atoms.size() - 1)) {
+                    if (atom != repeated && atom.repeated()) {
+                        return null;
+                    }
+                    for (int b = 0; b < 256; b++) {
+                        if (atom.bytes()[b] != (b != close)) {
+                            return null;
+                        }
+                    }
+                }
+                return new DelimitedStage((byte) open, (byte) close, atoms.size() - 3, replacement);
+            }
+
+            @Override
+            void reset() {
+                inner.length = 0;
+                inside = false;
+            }
+
+            @Override
+            boolean process(ByteChunk in, boolean last, ByteChunk out) {
+                feed(in.bytes, 0, in.length, out);
+                if (inner.length > MAX_HELD_BACK) {
+                    return false;
+                }
+                if (last && inside) {
+                    // no closing byte after the opening one, so neither it nor
+                    // any opening byte in the run starts a match
+                    out.append(open);
+                    out.append(inner.bytes, 0, inner.length);
+                    inside = false;
+                }
+                return true;
+            }
+
+            private void feed(byte[] bytes, int from, int to, ByteChunk out) {
+                int i = from;
+                while (i < to) {
+                    int runStart = i;
+                    if (!inside) {
+                        while (i < to && bytes[i] != open) {
+                            i++;
+                        }
+                        out.append(bytes, runStart, i - runStart);
+                        if (i < to) {
+                            inside = true;
+                            inner.length = 0;
+                            i++;
+                        }
+                    } else {
+                        while (i < to && bytes[i] != close) {
+                            i++;
+                        }
+                        inner.append(bytes, runStart, i - runStart);
+                        if (i < to) {
+                            i++;
+                            inside = false;
+                            if (inner.length >= minInner) {
+                                out.append(replacement, 0, replacement.length);
+                            } else {
+                                // too short, so matching resumes right after
+                                // the opening byte
+                                byte[] rest = Arrays.copyOf(inner.bytes, inner.length + 1);
+                                rest[inner.length] = close;
+                                out.append(open);
+                                feed(rest, 0, rest.length, out);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the substitutions one after another like chained replaceAll
+     * calls, but on bytes. Matching runs on a view of the current result and
+     * the next one is written into the other of two buffers, which are reused
+     * for all steps and grow only when a result doesn't fit. Replacements with
+     * group references, escapes or non-ASCII characters go through
+     * Matcher.replaceAll and are encoded back, as they aren't plain bytes.
+     */
+    static int substituteAll(Map<String, String> table, byte[] input, int length) {
+        FusedSubstitution.ByteChunk current = null;
+        FusedSubstitution.ByteChunk next = new FusedSubstitution.ByteChunk(length + length / 8);
+        FusedSubstitution.ByteChunk spare = new FusedSubstitution.ByteChunk(length + length / 8);
+        for (Map.Entry<String, String> entry : table.entrySet()) {
+            ByteSequence view = current == null ? new ByteSequence(input, 0, length)
+                    : new ByteSequence(current.bytes, 0, current.length);
+            Matcher matcher = Pattern.compile(entry.getKey()).matcher(view);
+            String replacement = entry.getValue();
+            next.length = 0;
+            if (replacement.chars().allMatch(c -> c < 128 && c != '$' && c != '\\')) {
+                byte[] replacementBytes = replacement.getBytes(StandardCharsets.ISO_8859_1);
+                int copied = 0;
+                while (matcher.find()) {
+                    next.append(view.bytes, view.from + copied, matcher.start() - copied);
+                    next.append(replacementBytes, 0, replacementBytes.length);
+                    copied = matcher.end();
+                }
+                next.append(view.bytes, view.from + copied, view.length - copied);
+            } else {
+                byte[] replaced = matcher.replaceAll(replacement).getBytes(StandardCharsets.ISO_8859_1);
+                next.append(replaced, 0, replaced.length);
+            }
+            current = next;
+            next = spare;
+            spare = current;
+        }
+        return current == null ? length : current.length;
+    }
+
+    /**
+     * Read-only view of bytes as ISO-8859-1 characters, so that a Matcher can
+     * scan the sequence without decoding it into a String first.
+     */
+    static final class ByteSequence implements CharSequence {
+        final byte[] bytes;
+        final int from;
+        final int length;
+
+        ByteSequence(byte[] bytes, int from, int length) {
+            this.bytes = bytes;
+            this.from = from;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[from + Objects.checkIndex(index, length)] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Objects.checkFromToIndex(start, end, length);
+            return new ByteSequence(bytes, from + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, from, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Counts the matches of several patterns in one pass with an Aho-Corasick
+     * automaton over bytes. It handles patterns that are alternations of
+     * literal and character class sequences of one length per pattern, like
+     * all the variant patterns. With a single length the leftmost match is also
+     * the one that ends first, so a match ending at some position counts when it
+     * starts at or after the end of the previous counted match of its pattern,
+     * exactly as in a separate non-overlapping scan per pattern.
+     */
+    static final class VariantAutomaton {
+        // the automaton has states for every sequence of byte classes the
+        // patterns expand to
+        private static final int MAX_LITERALS = 4096;
+
+        // bytes that no character set contains share class 0
+        private final int[] byteClasses;
+        // next state for each state and byte class, states are premultiplied by
+        // classCount, i.e. the start of the state's row
+        private final int[] transitions;
+        // patterns with a match ending in the state, indexed like transitions
+        private final long[] outputs;
+        private final int[] lengths;
+
+        private VariantAutomaton(int[] byteClasses, int[] transitions, long[] outputs, int[] lengths) {
+            this.byteClasses = byteClasses;
+            this.transitions = transitions;
+            this.outputs = outputs;
+            this.lengths = lengths;
+        }
+
+        /**
+         * Returns null if any pattern has a form not handled here, in which case
+         * the patterns have to be matched one by one.
+         */
+        static VariantAutomaton of(List<String> patterns) {
+            if (patterns.size() > Long.SIZE) {
+                return null;
+            }
+            List<List<List<FusedSubstitution.Atom>>> parsed = new ArrayList<>();
+            int[] lengths = new int[patterns.size()];
+            for (int pattern = 0; pattern < patterns.size(); pattern++) {
+                List<List<FusedSubstitution.Atom>> alternatives =
+                        FusedSubstitution.parseAlternatives(patterns.get(pattern));
+                if (alternatives == null) {
+                    return null;
+                }
+                lengths[pattern] = alternatives.get(0).size();
+                for (List<FusedSubstitution.Atom> atoms : alternatives) {
+                    if (atoms.isEmpty() || atoms.size() != lengths[pattern]
+                            || atoms.stream().anyMatch(FusedSubstitution.Atom::repeated)) {
+                        return null;
+                    }
+                }
+                parsed.add(alternatives);
+            }
+
+            // bytes that belong to exactly the same sets are interchangeable,
+            // so the automaton works on such classes of bytes; bytes that no
+            // set contains end up in class 0
+            List<boolean[]> sets = parsed.stream().flatMap(List::stream).flatMap(List::stream)
+                    .map(FusedSubstitution.Atom::bytes).collect(toList());
+            Map<BitSet, Integer> classesBySets = new HashMap<>();
+            classesBySets.put(new BitSet(), 0);
+            List<Integer> representatives = new ArrayList<>(List.of(-1));
+            int[] byteClasses = new int[256];
+            for (int b = 0; b < 256; b++) {
+                BitSet containing = new BitSet();
+                for (int set = 0; set < sets.size(); set++) {
+                    if (sets.get(set)[b]) {
+                        containing.set(set);
+                    }
+                }
+                Integer byteClass = classesBySets.get(containing);
+                if (byteClass == null) {
+                    byteClass = representatives.size();
+                    classesBySets.put(containing, byteClass);
+                    representatives.add(b);
+                }
+                byteClasses[b] = byteClass;
+            }
+            int classCount = representatives.size();
+
+            List<int[]> literals = new ArrayList<>();
+            List<Integer> literalPatterns = new ArrayList<>();
+            for (int pattern = 0; pattern < parsed.size(); pattern++) {
+                for (List<FusedSubstitution.Atom> atoms : parsed.get(pattern)) {
+                    List<int[]> expanded = new ArrayList<>();
+                    expanded.add(new int[atoms.size()]);
+                    for (int position = 0; position < atoms.size(); position++) {
+                        List<int[]> next = new ArrayList<>();
+                        for (int[] prefix : expanded) {
+                            for (int byteClass = 1; byteClass < classCount; byteClass++) {
+                                if (atoms.get(position).bytes()[representatives.get(byteClass)]) {
+                                    int[] literal = prefix.clone();
+                                    literal[position] = byteClass;
+                                    next.add(literal);
+                                }
+                            }
+                        }
+                        if (literals.size() + next.size() > MAX_LITERALS) {
+                            return null;
+                        }
+                        expanded = next;
+                    }
+                    for (int[] literal : expanded) {
+                        literals.add(literal);
+                        literalPatterns.add(pattern);
+                    }
+                }
+            }
+
+            // trie of the literals, -1 standing for no edge yet
+            List<int[]> edges = new ArrayList<>();
+            List<Long> stateOutputs = new ArrayList<>();
+            edges.add(newRow(classCount));
+            stateOutputs.add(0L);
+            for (int i = 0; i < literals.size(); i++) {
+                int state = 0;
+                for (int byteClass : literals.get(i)) {
+                    if (edges.get(state)[byteClass] < 0) {
+                        edges.get(state)[byteClass] = edges.size();
+                        edges.add(newRow(classCount));
+                        stateOutputs.add(0L);
+                    }
+                    state = edges.get(state)[byteClass];
+                }
+                stateOutputs.set(state, stateOutputs.get(state) | 1L << literalPatterns.get(i));
+            }
+
+            // breadth first, so the failure state is always complete already
+            int states = edges.size();
+            int[] transitions = new int[states * classCount];
+            long[] outputs = new long[states * classCount];
+            int[] failures = new int[states];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int byteClass = 0; byteClass < classCount; byteClass++) {
+                int child = edges.get(0)[byteClass];
+                if (child >= 0) {
+                    failures[child] = 0;
+                    queue.add(child);
+                }
+                transitions[byteClass] = Math.max(child, 0) * classCount;
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                outputs[state * classCount] = stateOutputs.get(state)
+                        | outputs[failures[state] * classCount];
+                for (int byteClass = 0; byteClass < classCount; byteClass++) {
+                    int child = edges.get(state)[byteClass];
+                    int fallback = transitions[failures[state] * classCount + byteClass];
+                    if (child >= 0) {
+                        failures[child] = fallback / classCount;
+                        queue.add(child);
+                        transitions[state * classCount + byteClass] = child * classCount;
+                    } else {
+                        transitions[state * classCount + byteClass] = fallback;
+                    }
+                }
+            }
+            return new VariantAutomaton(byteClasses, transitions, outputs, lengths);
+        }
+
+        private static int[] newRow(int classCount) {
+            int[] row = new int[classCount];
+            Arrays.fill(row, -1);
+            return row;
+        }
+
+        long[] count(byte[] input, int length) {
+            long[] counts = new long[lengths.length];
+            // end of the last counted match of every pattern
+            long[] lastEnds = new long[lengths.length];
+            int state = 0;
+            for (int i = 0; i < length; i++) {
+                state = transitions[state + byteClasses[input[i] & 0xff]];
+                long matched = outputs[state];
+                while (matched != 0) {
+                    int pattern = Long.numberOfTrailingZeros(matched);
+                    if (i + 1 - lengths[pattern] >= lastEnds[pattern]) {
+                        counts[pattern]++;
+                        lastEnds[pattern] = i + 1;
+                    }
+                    matched &= matched - 1;
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Matches counted in one segment, i.e. matches found by scanning from the
+     * segment start that themselves start before the segment end.
+     */
+    record SegmentCount(long count, int firstStart, int lastEnd) {
+    }
+
+    /**
+     * Upper bound of the match length for patterns made only of literals, dots,
+     * escaped punctuation and character classes joined with alternation, or -1
+     * for anything else, since such patterns can't be safely split.
+     */
+    static int maxMatchLength(String pattern) {
+        int maxLength = 0;
+        int length = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '|' -> {
+                    maxLength = Math.max(maxLength, length);
+                    length = 0;
+                }
+                case '\\' -> {
+                    if (i + 1 == pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                        return -1;
+                    }
+                    i++;
+                    length++;
+                }
+                case '[' -> {
+                    int end = i + 1;
+                    if (end < pattern.length() && pattern.charAt(end) == '^') {
+                        end++;
+                    }
+                    if (end < pattern.length() && pattern.charAt(end) == ']') {
+                        end++;
+                    }
+                    while (end < pattern.length() && pattern.charAt(end) != ']') {
+                        // nested classes and intersections would need a real parser
+                        if (pattern.charAt(end) == '[' || pattern.charAt(end) == '&') {
+                            return -1;
+                        }
+                        end += pattern.charAt(end) == '\\' ? 2 : 1;
+                    }
+                    if (end >= pattern.length()) {
+                        return -1;
+                    }
+                    i = end;
+                    length++;
+                }
+                case '*', '+', '?', '{', '(', ')', '^', '$' -> {
+                    return -1;
+                }
+                default -> length++;
+            }
+        }
+        return Math.max(maxLength, length);
+    }
+
+    /**
+     * Counts non-overlapping matches that start within [from, to), scanning
+     * from {@code from} and never looking past {@code limit}.
+     */
+    static SegmentCount countMatches(Pattern pattern, CharSequence sequence, int from, int to, int limit) {
+        Matcher matcher = pattern.matcher(sequence).region(from, limit);
+        long count = 0;
+        int firstStart = -1;
+        int lastEnd = from;
+        while (from < to && matcher.find() && matcher.start() < to) {
+            if (count == 0) {
+                firstStart = matcher.start();
+            }
+            count++;
+            lastEnd = matcher.end();
+        }
+        return new SegmentCount(count, firstStart, lastEnd);
+    }
+
+    /**
+     * Sums segment counts in order. A match may run past its segment end, and a
+     * sequential scan would then resume after it. A segment whose first match
+     * starts before that point is therefore rescanned from there. That takes a
+     * match across the boundary overlapping another one, so it's rare.
+     */
+    static long mergeCounts(Pattern pattern, CharSequence sequence, SegmentCount[] segments, int segmentLength) {
+        long total = 0;
+        int resumeAt = 0;
+        for (int segment = 0; segment < segments.length && segments[segment] != null; segment++) {
+            SegmentCount count = segments[segment];
+            if (count.count() > 0 && count.firstStart() < resumeAt) {
+                int to = (int) Math.min((long) (segment + 1) * segmentLength, sequence.length());
+                int limit = Math.min(to + Math.max(maxMatchLength(pattern.pattern()) - 1, 0), sequence.length());
+                count = countMatches(pattern, sequence, resumeAt, to, limit);
+            }
+            if (count.count() > 0) {
+                total += count.count();
+                resumeAt = count.lastEnd();
+            }
+        }
+        return total;
+    }
+}
@@ -7,16 +7,30 @@
 
 import jextract_pcre2.pcre2_h;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -26,19 +40,74 @@ public class regexredux_panama_foreign {
     private static final ExecutorService EXECUTOR_SERVICE =
             Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-    private static final Arena GLOBAL_ARENA = Arena.global();
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final long MIN_SEGMENT_LENGTH = 1 << 20;
+
+    private static final int DEFAULT_PATTERN_CACHE_SIZE = 64;
+
+    // only the whole match offsets are read, further pairs are just ignored
+    private static final int OVECTOR_PAIRS = 16;
+
+    private static final long JIT_STACK_START_SIZE = 32 * 1024;
+    private static final long JIT_STACK_MAX_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<MatchResources> MATCH_RESOURCES =
+            ThreadLocal.withInitial(MatchResources::create);
 
     public static void main(String[] args) throws Exception {
-        final byte[] rawInput = System.in.readAllBytes();
-        final int initialLength = rawInput.length;
-
-        final var sequence = GLOBAL_ARENA.allocate(initialLength);
-        final int sequenceLength = withArena(arena -> {
-            var rawInputBuffer = arena.allocateFrom(JAVA_BYTE, rawInput);
-            var compiledPattern = compilePattern(">.*\\n|\\n");
-            return substitute(compiledPattern, rawInputBuffer, initialLength,
-                    pcre2_h.NULL(), sequence, initialLength, "");
-        });
+        var chunkSize = DEFAULT_CHUNK_SIZE;
+        Path mappedInput = null;
+        var segments = 0;
+        var patternCacheSize = DEFAULT_PATTERN_CACHE_SIZE;
+        var fusedSubstitution = true;
+        var variantsAutomaton = true;
+        for (var option : args) {
+            if (option.startsWith("--chunk-size=")) {
+                chunkSize = Integer.parseInt(
+                        option.substring("--chunk-size=".length()));
+                if (chunkSize <= 0) {
+                    throw new IllegalArgumentException(
+                            "chunk size must be positive");
+                }
+            } else if (option.startsWith("--segments=")) {
+                segments = Integer.parseInt(
+                        option.substring("--segments=".length()));
+                if (segments <= 0) {
+                    throw new IllegalArgumentException(
+                            "segments count must be positive");
+                }
+            } else if (option.startsWith("--pattern-cache-size=")) {
+                patternCacheSize = Integer.parseInt(
+                        option.substring("--pattern-cache-size=".length()));
+                if (patternCacheSize <= 0) {
+                    throw new IllegalArgumentException(
+                            "pattern cache size must be positive");
+                }
+            } else if (option.equals("--substitution=fused")) {
+                fusedSubstitution = true;
+            } else if (option.equals("--substitution=chain")) {
+                fusedSubstitution = false;
+            } else if (option.equals("--variants=automaton")) {
+                variantsAutomaton = true;
+            } else if (option.equals("--variants=pcre2")) {
+                variantsAutomaton = false;
+            } else if (option.startsWith("--mapped-input=")) {
+                mappedInput = Path.of(
+                        option.substring("--mapped-input=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option: " + option);
+            }
+        }
+
+        final var input = mappedInput != null ? ingestMapped(mappedInput) :
+                ingest(new FileInputStream(FileDescriptor.in).getChannel(),
+                        chunkSize);
+        final long initialLength = input.rawLength();
+        final var sequence = input.sequence();
+        final long sequenceLength = input.sequenceLength();
+        final var patternCache = new PatternCache(patternCacheSize);
+        final var fused = fusedSubstitution;
 
         var magicRegExpsCount = EXECUTOR_SERVICE.submit(() -> {
             final Map<String, String> iub = new LinkedHashMap<>();
@@ -48,6 +117,15 @@ public class regexredux_panama_foreign {
             iub.put("<[^>]*>", "|");
             iub.put("\\|[^|][^|]*\\|", "-");
 
+            var fusedIub = fused ? FusedSubstitution.of(iub) : null;
+            if (fusedIub != null) {
+                var resultLength =
+                        fusedIub.resultLength(sequence, sequenceLength);
+                if (resultLength >= 0) {
+                    return resultLength;
+                }
+            }
+
             return withArena(arena -> {
                 var currentLength = sequenceLength;
                 var bufLength = currentLength * 3 / 2;
@@ -60,12 +138,18 @@ public class regexredux_panama_foreign {
                     var pattern = entry.getKey();
                     var replacement = entry.getValue();
 
-                    var compiledPattern = compilePattern(pattern);
-                    currentLength = substitute(compiledPattern,
-                            flip ? buf2 : buf1, currentLength,
-                            pcre2_h.NULL(),
-                            flip ? buf1 : buf2, bufLength,
-                            replacement);
+                    var compiledPattern = patternCache.acquire(pattern);
+                    try {
+                        var resources = MATCH_RESOURCES.get();
+                        currentLength = substitute(compiledPattern.code(),
+                                flip ? buf2 : buf1, currentLength,
+                                resources.matchData(),
+                                resources.matchContext(),
+                                flip ? buf1 : buf2, bufLength,
+                                replacement);
+                    } finally {
+                        patternCache.release(compiledPattern);
+                    }
                     flip = !flip;
                 }
                 return currentLength;
@@ -82,29 +166,49 @@ public class regexredux_panama_foreign {
                 "agggta[cgt]a|t[acg]taccct",
                 "agggtaa[cgt]|[acg]ttaccct");
 
-        var tasks = variants.stream().map(variant -> (Callable<String>) () -> {
-            var compiledPattern = compilePattern(variant);
-            var oVectorSize = 100;
-            var matchData = pcre2_h
-                    .pcre2_match_data_create_8(oVectorSize, pcre2_h.NULL());
-            var oVectorPtr = pcre2_h
-                    .pcre2_get_ovector_pointer_8(matchData)
-                    .reinterpret(16 * oVectorSize);
-            oVectorPtr.setAtIndex(JAVA_LONG, 1, 0);
-            long count = 0;
-            var result = 1;
-            while ((result = pcre2_h.pcre2_jit_match_8(compiledPattern,
-                    sequence, sequenceLength,
-                    oVectorPtr.getAtIndex(JAVA_LONG, 2L * result - 1), 0,
-                    matchData, pcre2_h.NULL())) > 0) count += result;
-            if (result != pcre2_h.PCRE2_ERROR_NOMATCH()) {
-                showPcre2ErrorIfAny("jit match", result);
-            }
-            return variant + " " + count;
-        }).toList();
-
-        for (var result : EXECUTOR_SERVICE.invokeAll(tasks)) {
-            System.out.println(result.get());
+        var automaton =
+                variantsAutomaton ? VariantAutomaton.of(variants) : null;
+        if (automaton != null) {
+            var counts = automaton.count(sequence, sequenceLength);
+            for (var i = 0; i < variants.size(); i++) {
+                System.out.println(variants.get(i) + " " + counts[i]);
+            }
+        } else {
+            if (segments == 0) {
+                segments = defaultSegmentCount(sequenceLength, variants.size());
+            }
+            var segmentLength = Math.max(
+                    (sequenceLength + segments - 1) / segments, 1);
+            var variantTasks = new ArrayList<VariantTasks>();
+            for (var variant : variants) {
+                var compiledPattern = patternCache.acquire(variant);
+                var maxMatchLength = maxMatchLength(variant);
+                var segmentTasks = new ArrayList<SegmentTask>();
+                for (var from = 0L; from < sequenceLength || from == 0;
+                     from += segmentLength) {
+                    var to = maxMatchLength < 0 ? sequenceLength :
+                            Math.min(from + segmentLength, sequenceLength);
+                    var overlap = Math.max(maxMatchLength - 1, 0);
+                    var limit = maxMatchLength < 0 ? sequenceLength :
+                            Math.min(to + overlap, sequenceLength);
+                    var segmentFrom = from;
+                    segmentTasks.add(new SegmentTask(from, to, limit,
+                            EXECUTOR_SERVICE.submit(() -> countMatches(
+                                    compiledPattern.code(), sequence,
+                                    segmentFrom, to, limit))));
+                    if (to == sequenceLength) {
+                        break;
+                    }
+                }
+                variantTasks.add(new VariantTasks(
+                        variant, compiledPattern, segmentTasks));
+            }
+
+            for (var tasks : variantTasks) {
+                System.out.println(tasks.variant() + " " +
+                        mergeCounts(tasks, sequence));
+                patternCache.release(tasks.compiledPattern());
+            }
         }
 
         System.out.println();
@@ -113,13 +217,1081 @@ public class regexredux_panama_foreign {
         System.out.println(magicRegExpsCount.get());
 
         EXECUTOR_SERVICE.shutdown();
+        EXECUTOR_SERVICE.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        MatchResources.freeAll();
+        patternCache.close();
+    }
+
+    /**
+     * Bounded LRU cache of JIT-compiled patterns. Patterns are handed out with
+     * a usage count, so a pattern evicted while still in use is freed only
+     * when its last user releases it.
+     */
+    private static final class PatternCache implements AutoCloseable {
+        private final int capacity;
+        private final LinkedHashMap<String, CompiledPattern> patterns =
+                new LinkedHashMap<>(16, 0.75f, true);
+
+        PatternCache(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized CompiledPattern acquire(String pattern) {
+            var compiledPattern = patterns.get(pattern);
+            if (compiledPattern == null) {
+                compiledPattern = new CompiledPattern(compilePattern(pattern));
+                patterns.put(pattern, compiledPattern);
+                while (patterns.size() > capacity) {
+                    var eldest = patterns.entrySet().iterator();
+                    var evicted = eldest.next().getValue();
+                    eldest.remove();
+                    evicted.evicted = true;
+                    evicted.freeIfUnused();
+                }
+            }
+            compiledPattern.users++;
+            return compiledPattern;
+        }
+
+        synchronized void release(CompiledPattern compiledPattern) {
+            compiledPattern.users--;
+            compiledPattern.freeIfUnused();
+        }
+
+        @Override
+        public synchronized void close() {
+            for (var compiledPattern : patterns.values()) {
+                compiledPattern.evicted = true;
+                compiledPattern.freeIfUnused();
+            }
+            patterns.clear();
+        }
+    }
+
+    private static final class CompiledPattern {
+        private final MemorySegment code;
+        private int users;
+        private boolean evicted;
+
+        CompiledPattern(MemorySegment code) {
+            this.code = code;
+        }
+
+        MemorySegment code() {
+            return code;
+        }
+
+        private void freeIfUnused() {
+            if (evicted && users == 0) {
+                pcre2_h.pcre2_code_free_8(code);
+            }
+        }
+    }
+
+    /**
+     * Per-thread match data and match context, with its own JIT stack, reused
+     * by every match and substitution running on that thread. All of them are
+     * tracked, so they can be freed once the worker threads are done.
+     */
+    private record MatchResources(MemorySegment matchData,
+                                  MemorySegment matchContext,
+                                  MemorySegment jitStack) {
+        private static final List<MatchResources> ALL = new ArrayList<>();
+
+        static MatchResources create() {
+            var matchData = pcre2_h.pcre2_match_data_create_8(
+                    OVECTOR_PAIRS, pcre2_h.NULL());
+            var matchContext = pcre2_h.pcre2_match_context_create_8(
+                    pcre2_h.NULL());
+            var jitStack = pcre2_h.pcre2_jit_stack_create_8(
+                    JIT_STACK_START_SIZE, JIT_STACK_MAX_SIZE, pcre2_h.NULL());
+            pcre2_h.pcre2_jit_stack_assign_8(
+                    matchContext, pcre2_h.NULL(), jitStack);
+            var resources = new MatchResources(
+                    matchData, matchContext, jitStack);
+            synchronized (ALL) {
+                ALL.add(resources);
+            }
+            return resources;
+        }
+
+        static void freeAll() {
+            synchronized (ALL) {
+                for (var resources : ALL) {
+                    pcre2_h.pcre2_match_data_free_8(resources.matchData());
+                    pcre2_h.pcre2_match_context_free_8(resources.matchContext());
+                    pcre2_h.pcre2_jit_stack_free_8(resources.jitStack());
+                }
+                ALL.clear();
+            }
+        }
+    }
+
+    private record VariantTasks(String variant, CompiledPattern compiledPattern,
+                                List<SegmentTask> segments) {
+    }
+
+    private record SegmentTask(long from, long to, long limit,
+                               Future<SegmentCount> count) {
+    }
+
+    /**
+     * Matches counted in one segment, i.e. matches found by scanning from the
+     * segment start that themselves start before the segment end.
+     */
+    private record SegmentCount(long count, long firstStart, long lastEnd) {
+    }
+
+    private static int defaultSegmentCount(long sequenceLength, int patterns) {
+        var cores = Runtime.getRuntime().availableProcessors();
+        var wanted = (4 * cores + patterns - 1) / patterns;
+        return (int) Math.max(1, Math.min(wanted,
+                sequenceLength / MIN_SEGMENT_LENGTH));
+    }
+
+    /**
+     * Upper bound of the match length for patterns made only of literals,
+     * dots, escaped punctuation and character classes joined with
+     * alternation, or -1 for anything else (quantifiers, groups, anchors,
+     * backreferences, etc.) since such patterns can't be safely split.
+     */
+    private static int maxMatchLength(String pattern) {
+        var maxLength = 0;
+        var length = 0;
+        for (var i = 0; i < pattern.length(); i++) {
+            var c = pattern.charAt(i);
+            switch (c) {
+                case '|' -> {
+                    maxLength = Math.max(maxLength, length);
+                    length = 0;
+                }
+                case '\\' -> {
+                    if (i + 1 == pattern.length() ||
+                            Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                        return -1;
+                    }
+                    i++;
+                    length++;
+                }
+                case '[' -> {
+                    var end = i + 1;
+                    if (end < pattern.length() && pattern.charAt(end) == '^') {
+                        end++;
+                    }
+                    if (end < pattern.length() && pattern.charAt(end) == ']') {
+                        end++;
+                    }
+                    while (end < pattern.length() && pattern.charAt(end) != ']') {
+                        // POSIX classes would need a real parser
+                        if (pattern.charAt(end) == '[') {
+                            return -1;
+                        }
+                        end += pattern.charAt(end) == '\\' ? 2 : 1;
+                    }
+                    if (end >= pattern.length()) {
+                        return -1;
+                    }
+                    i = end;
+                    length++;
+                }
+                case '*', '+', '?', '{', '(', ')', '^', '$' -> {
+                    return -1;
+                }
+                default -> length++;
+            }
+        }
+        return Math.max(maxLength, length);
+    }
+
+    /**
+     * Counts non-overlapping matches that start within {@code [from, to)},
+     * scanning from {@code from} and never looking past {@code limit}.
+     */
+    private static SegmentCount countMatches(
+            MemorySegment compiledPattern, MemorySegment sequence,
+            long from, long to, long limit) {
+        var resources = MATCH_RESOURCES.get();
+        var oVectorPtr = pcre2_h
+                .pcre2_get_ovector_pointer_8(resources.matchData())
+                .reinterpret(2 * JAVA_LONG.byteSize());
+        var count = 0L;
+        var firstStart = -1L;
+        var lastEnd = from;
+        var start = from;
+        var result = pcre2_h.PCRE2_ERROR_NOMATCH();
+        // zero means a match with more groups than the ovector has room for
+        while (start < to && (result = pcre2_h.pcre2_jit_match_8(
+                compiledPattern, sequence, limit, start, 0,
+                resources.matchData(), resources.matchContext())) >= 0) {
+            var matchStart = oVectorPtr.getAtIndex(JAVA_LONG, 0);
+            if (matchStart >= to) {
+                break;
+            }
+            var matchEnd = oVectorPtr.getAtIndex(JAVA_LONG, 1);
+            if (count == 0) {
+                firstStart = matchStart;
+            }
+            count++;
+            lastEnd = matchEnd;
+            start = matchEnd > matchStart ? matchEnd : matchEnd + 1;
+        }
+        if (result < 0 && result != pcre2_h.PCRE2_ERROR_NOMATCH()) {
+            showPcre2ErrorIfAny("jit match", result);
+        }
+        return new SegmentCount(count, firstStart, lastEnd);
+    }
+
+    /**
+     * Sums segment counts in order. A match may run past its segment end, and
+     * a sequential scan would then resume after it. A segment whose first
+     * match starts before that point is therefore rescanned from there. That
+     * takes a match across the boundary overlapping another one, so it's rare.
+     */
+    private static long mergeCounts(VariantTasks tasks, MemorySegment sequence)
+            throws Exception {
+        var total = 0L;
+        var resumeAt = 0L;
+        for (var segment : tasks.segments()) {
+            var count = segment.count().get();
+            if (count.count() > 0 && count.firstStart() < resumeAt) {
+                count = countMatches(tasks.compiledPattern().code(), sequence,
+                        resumeAt, segment.to(), segment.limit());
+            }
+            if (count.count() > 0) {
+                total += count.count();
+                resumeAt = count.lastEnd();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Computes the length of the result of a chain of global substitutions in
+     * one pass. It handles tables made only of the two pattern shapes the
+     * benchmark uses: alternations of fixed-length sequences of literals and
+     * character classes, e.g. {@code aND|caN|Ha[DS]|WaS}, and delimited runs,
+     * e.g. {@code <[^>]*>}, with literal replacements. Every substitution is a
+     * stage streaming its output in chunks to the next one, so the sequence is
+     * read once and no sequence-sized buffer is allocated. Only a delimited
+     * run that isn't closed yet is held back whole, up to MAX_HELD_BACK bytes.
+     * Stages keep state, so an instance must not be used by two threads at
+     * once.
+     */
+    private static final class FusedSubstitution {
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        // longer unclosed runs make resultLength give up, so memory stays
+        // bounded also for input that never closes a run
+        private static final int MAX_HELD_BACK = 1 << 20;
+
+        private final List<Stage> stages;
+
+        private FusedSubstitution(List<Stage> stages) {
+            this.stages = stages;
+        }
+
+        /**
+         * Returns null if any pattern or replacement has a form not handled
+         * here, in which case the pcre2 substitution chain has to be used.
+         */
+        static FusedSubstitution of(Map<String, String> table) {
+            var stages = new ArrayList<Stage>();
+            for (var entry : table.entrySet()) {
+                var replacement = entry.getValue();
+                if (!replacement.chars().allMatch(
+                        c -> c < 128 && c != '$' && c != '\\')) {
+                    return null;
+                }
+                var replacementBytes =
+                        replacement.getBytes(StandardCharsets.US_ASCII);
+                var alternatives = parseAlternatives(entry.getKey());
+                if (alternatives == null) {
+                    return null;
+                }
+                Stage stage = DelimitedStage.of(alternatives, replacementBytes);
+                if (stage == null) {
+                    stage = LiteralsStage.of(alternatives, replacementBytes);
+                }
+                if (stage == null) {
+                    return null;
+                }
+                stages.add(stage);
+            }
+            return new FusedSubstitution(stages);
+        }
+
+        /**
+         * Returns -1 if a stage would have to hold back more than
+         * MAX_HELD_BACK bytes, in which case the pcre2 substitution chain has
+         * to be used.
+         */
+        long resultLength(MemorySegment input, long length) {
+            var chunk = new ByteChunk(CHUNK_SIZE);
+            var outputs = new ByteChunk[stages.size()];
+            for (var i = 0; i < outputs.length; i++) {
+                outputs[i] = new ByteChunk(CHUNK_SIZE);
+                stages.get(i).reset();
+            }
+            var resultLength = 0L;
+            var offset = 0L;
+            boolean last;
+            do {
+                var count = (int) Math.min(CHUNK_SIZE, length - offset);
+                last = offset + count == length;
+                MemorySegment.copy(input, JAVA_BYTE, offset,
+                        chunk.bytes, 0, count);
+                chunk.length = count;
+                offset += count;
+                var current = chunk;
+                for (var i = 0; i < outputs.length; i++) {
+                    outputs[i].length = 0;
+                    if (!stages.get(i).process(current, last, outputs[i])) {
+                        return -1;
+                    }
+                    current = outputs[i];
+                }
+                resultLength += current.length;
+            } while (!last);
+            return resultLength;
+        }
+
+        /**
+         * A set of bytes, optionally repeated zero or more times.
+         */
+        private record Atom(boolean[] bytes, boolean repeated) {
+        }
+
+        /**
+         * Parses alternations of literals, escaped punctuation and character
+         * classes, optionally followed by {@code *}. Returns null for any
+         * other syntax, also for the dot, to stay away from newline handling.
+         */
+        private static List<List<Atom>> parseAlternatives(String pattern) {
+            var alternatives = new ArrayList<List<Atom>>();
+            var current = new ArrayList<Atom>();
+            for (var i = 0; i < pattern.length(); i++) {
+                var c = pattern.charAt(i);
+                switch (c) {
+                    case '|' -> {
+                        alternatives.add(current);
+                        current = new ArrayList<>();
+                    }
+                    case '\\' -> {
+                        if (i + 1 == pattern.length() ||
+                                !isPunctuation(pattern.charAt(i + 1))) {
+                            return null;
+                        }
+                        current.add(new Atom(single(pattern.charAt(++i)), false));
+                    }
+                    case '[' -> {
+                        var bytes = new boolean[256];
+                        var end = i + 1;
+                        var negated = end < pattern.length() &&
+                                pattern.charAt(end) == '^';
+                        if (negated) {
+                            end++;
+                        }
+                        var first = end;
+                        while (end < pattern.length() &&
+                                (pattern.charAt(end) != ']' || end == first)) {
+                            var from = pattern.charAt(end);
+                            if (from == '\\') {
+                                if (end + 1 == pattern.length() ||
+                                        !isPunctuation(pattern.charAt(end + 1))) {
+                                    return null;
+                                }
+                                from = pattern.charAt(++end);
+                            } else if (from == '[' || from >= 128) {
+                                // POSIX classes
+                                return null;
+                            }
+                            var to = from;
+                            if (end + 2 < pattern.length() &&
+                                    pattern.charAt(end + 1) == '-' &&
+                                    pattern.charAt(end + 2) != ']') {
+                                to = pattern.charAt(end + 2);
+                                if (to == '\\' || to == '[' || to >= 128 ||
+                                        to < from) {
+                                    return null;
+                                }
+                                end += 2;
+                            }
+                            for (var b = from; b <= to; b++) {
+                                bytes[b] = true;
+                            }
+                            end++;
+                        }
+                        if (end >= pattern.length()) {
+                            return null;
+                        }
+                        if (negated) {
+                            for (var b = 0; b < bytes.length; b++) {
+                                bytes[b] = !bytes[b];
+                            }
+                        }
+                        current.add(new Atom(bytes, false));
+                        i = end;
+                    }
+                    case '*' -> {
+                        if (current.isEmpty() ||
+                                current.getLast().repeated()) {
+                            return null;
+                        }
+                        current.set(current.size() - 1,
+                                new Atom(current.getLast().bytes(), true));
+                    }
+                    case '.', '(', ')', '?', '+', '{', '}', '^', '$', ']' -> {
+                        return null;
+                    }
+                    default -> {
+                        if (c >= 128) {
+                            return null;
+                        }
+                        current.add(new Atom(single(c), false));
+                    }
+                }
+            }
+            alternatives.add(current);
+            return alternatives;
+        }
+
+        private static boolean isPunctuation(char c) {
+            return c < 128 && !Character.isLetterOrDigit(c) &&
+                    !Character.isWhitespace(c);
+        }
+
+        private static boolean[] single(char c) {
+            var bytes = new boolean[256];
+            bytes[c] = true;
+            return bytes;
+        }
+
+        /**
+         * Returns the only byte in the set, or -1 if there are none or more.
+         */
+        private static int onlyByte(boolean[] bytes) {
+            var only = -1;
+            for (var b = 0; b < bytes.length; b++) {
+                if (bytes[b]) {
+                    if (only >= 0) {
+                        return -1;
+                    }
+                    only = b;
+                }
+            }
+            return only;
+        }
+
+        private static final class ByteChunk {
+            byte[] bytes;
+            int length;
+
+            ByteChunk(int capacity) {
+                bytes = new byte[capacity];
+            }
+
+            void append(byte b) {
+                ensureCapacity(1);
+                bytes[length++] = b;
+            }
+
+            void append(byte[] source, int from, int count) {
+                ensureCapacity(count);
+                System.arraycopy(source, from, bytes, length, count);
+                length += count;
+            }
+
+            void ensureCapacity(int extra) {
+                if (bytes.length - length < extra) {
+                    bytes = Arrays.copyOf(bytes,
+                            Math.max(bytes.length * 2, length + extra));
+                }
+            }
+        }
+
+        private abstract static class Stage {
+            abstract void reset();
+
+            /**
+             * Appends the output for the given input to out. Output that
+             * depends on input not seen yet is held back until the last call.
+             * Returns false if that would be more than MAX_HELD_BACK bytes,
+             * and then the output is incomplete.
+             */
+            abstract boolean process(ByteChunk in, boolean last,
+                                     ByteChunk out);
+        }
+
+        /**
+         * Alternation of fixed-length sequences of byte sets. The first
+         * alternative matching at the leftmost position wins, as in a
+         * backtracking engine.
+         */
+        private static final class LiteralsStage extends Stage {
+            private final boolean[][][] alternatives;
+            // indexed with first byte * 257 + second byte, or + 256 for no
+            // second byte; tells whether some alternative may match there
+            private final boolean[] candidates = new boolean[256 * 257];
+            private final int maxLength;
+            private final byte[] replacement;
+            // input not decided yet, i.e. shorter than the longest match
+            private final ByteChunk pending = new ByteChunk(CHUNK_SIZE);
+
+            private LiteralsStage(boolean[][][] alternatives,
+                                  byte[] replacement) {
+                this.alternatives = alternatives;
+                this.replacement = replacement;
+                var maxLength = 0;
+                for (var alternative : alternatives) {
+                    maxLength = Math.max(maxLength, alternative.length);
+                    for (var first = 0; first < 256; first++) {
+                        for (var second = 0;
+                             second < 257 && alternative[0][first]; second++) {
+                            candidates[first * 257 + second] |=
+                                    alternative.length == 1 ||
+                                    second < 256 && alternative[1][second];
+                        }
+                    }
+                }
+                this.maxLength = maxLength;
+            }
+
+            static LiteralsStage of(List<List<Atom>> alternatives,
+                                    byte[] replacement) {
+                var sets = new boolean[alternatives.size()][][];
+                for (var i = 0; i < sets.length; i++) {
+                    var atoms = alternatives.get(i);
+                    if (atoms.isEmpty()) {
+                        return null;
+                    }
+                    sets[i] = new boolean[atoms.size()][];
+                    for (var j = 0; j < atoms.size(); j++) {
+                        if (atoms.get(j).repeated()) {
+                            return null;
+                        }
+                        sets[i][j] = atoms.get(j).bytes();
+                    }
+                }
+                return new LiteralsStage(sets, replacement);
+            }
+
+            @Override
+            void reset() {
+                pending.length = 0;
+            }
+
+            @Override
+            boolean process(ByteChunk in, boolean last, ByteChunk out) {
+                pending.append(in.bytes, 0, in.length);
+                var bytes = pending.bytes;
+                var length = pending.length;
+                var limit = last ? length : length - (maxLength - 1);
+                var i = 0;
+                var runStart = 0;
+                while (i < limit) {
+                    i = findCandidate(bytes, i, Math.min(limit, length - 1));
+                    if (i == limit) {
+                        break;
+                    }
+                    // only the last byte of the whole input has no second byte
+                    var second = i + 1 < length ? bytes[i + 1] & 0xff : 256;
+                    var matched = candidates[(bytes[i] & 0xff) * 257 + second] ?
+                            matchLength(bytes, i, length) : 0;
+                    if (matched > 0) {
+                        out.append(bytes, runStart, i - runStart);
+                        out.append(replacement, 0, replacement.length);
+                        i += matched;
+                        runStart = i;
+                    } else {
+                        i++;
+                    }
+                }
+                out.append(bytes, runStart, i - runStart);
+                // a match may end past the limit, but never past the length
+                System.arraycopy(bytes, i, bytes, 0, length - i);
+                pending.length = length - i;
+                return true;
+            }
+
+            /**
+             * Returns the first position in [from, to) where a match may
+             * start, or to if there's none.
+             */
+            private int findCandidate(byte[] bytes, int from, int to) {
+                var i = from;
+                while (i < to && !candidates[
+                        (bytes[i] & 0xff) * 257 + (bytes[i + 1] & 0xff)]) {
+                    i++;
+                }
+                return i;
+            }
+
+            private int matchLength(byte[] bytes, int start, int length) {
+                next:
+                for (var alternative : alternatives) {
+                    if (start + alternative.length > length) {
+                        continue;
+                    }
+                    for (var j = 0; j < alternative.length; j++) {
+                        if (!alternative[j][bytes[start + j] & 0xff]) {
+                            continue next;
+                        }
+                    }
+                    return alternative.length;
+                }
+                return 0;
+            }
+        }
+
+        /**
+         * Pattern of the form {@code O[^C]...[^C][^C]*C}, i.e. an opening
+         * byte, at least minInner bytes other than the closing byte, and the
+         * closing byte. Such a match is decided by the first closing byte
+         * after the opening one, however far it is.
+         */
+        private static final class DelimitedStage extends Stage {
+            private final byte open;
+            private final byte close;
+            private final int minInner;
+            private final byte[] replacement;
+            private final ByteChunk inner = new ByteChunk(64);
+            private boolean inside;
+
+            private DelimitedStage(byte open, byte close, int minInner,
+                                   byte[] replacement) {
+                this.open = open;
+                this.close = close;
+                this.minInner = minInner;
+                this.replacement = replacement;
+            }
+
+            static DelimitedStage of(List<List<Atom>> alternatives,
+                                     byte[] replacement) {
+                if (alternatives.size() != 1 ||
+                        alternatives.getFirst().size() < 3) {
+                    return null;
+                }
+                var atoms = alternatives.getFirst();
+                var first = atoms.getFirst();
+                var last = atoms.getLast();
+                var repeated = atoms.get(atoms.size() - 2);
+                var open = onlyByte(first.bytes());
+                var close = onlyByte(last.bytes());
+                if (open < 0 || close < 0 || first.repeated() ||
+                        last.repeated() || !repeated.repeated()) {
+                    return null;
+                }
+                for (var atom : atoms.subList(1, atoms.size() - 1)) {
+                    if (atom != repeated && atom.repeated()) {
+                        return null;
+                    }
+                    for (var b = 0; b < 256; b++) {
+                        if (atom.bytes()[b] != (b != close)) {
+                            return null;
+                        }
+                    }
+                }
+                return new DelimitedStage((byte) open, (byte) close,
+                        atoms.size() - 3, replacement);
+            }
+
+            @Override
+            void reset() {
+                inner.length = 0;
+                inside = false;
+            }
+
+            @Override
+            boolean process(ByteChunk in, boolean last, ByteChunk out) {
+                feed(in.bytes, 0, in.length, out);
+                if (inner.length > MAX_HELD_BACK) {
+                    return false;
+                }
+                if (last && inside) {
+                    // no closing byte after the opening one, so neither it nor
+                    // any opening byte in the run starts a match
+                    out.append(open);
+                    out.append(inner.bytes, 0, inner.length);
+                    inside = false;
+                }
+                return true;
+            }
+
+            private void feed(byte[] bytes, int from, int to, ByteChunk out) {
+                var i = from;
+                while (i < to) {
+                    var runStart = i;
+                    if (!inside) {
+                        while (i < to && bytes[i] != open) {
+                            i++;
+                        }
+                        out.append(bytes, runStart, i - runStart);
+                        if (i < to) {
+                            inside = true;
+                            inner.length = 0;
+                            i++;
+                        }
+                    } else {
+                        while (i < to && bytes[i] != close) {
+                            i++;
+                        }
+                        inner.append(bytes, runStart, i - runStart);
+                        if (i < to) {
+                            i++;
+                            inside = false;
+                            if (inner.length >= minInner) {
+                                out.append(replacement, 0, replacement.length);
+                            } else {
+                                // too short, so matching resumes right after
+                                // the opening byte
+                                var rest = Arrays.copyOf(
+                                        inner.bytes, inner.length + 1);
+                                rest[inner.length] = close;
+                                out.append(open);
+                                feed(rest, 0, rest.length, out);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the matches of several patterns in one pass with an Aho-Corasick
+     * automaton over bytes. It handles patterns that are alternations of
+     * literal and character class sequences of one length per pattern, like
+     * all the variant patterns. With a single length the leftmost match is
+     * also the one that ends first, so a match ending at some position counts
+     * when it starts at or after the end of the previous counted match of its
+     * pattern, exactly as in a separate non-overlapping scan per pattern.
+     */
+    private static final class VariantAutomaton {
+        // the automaton has states for every sequence of byte classes the
+        // patterns expand to
+        private static final int MAX_LITERALS = 4096;
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        // bytes that no character set contains share class 0
+        private final int[] byteClasses;
+        // next state for each state and byte class, states are premultiplied
+        // by the number of classes, i.e. the start of the state's row
+        private final int[] transitions;
+        // patterns with a match ending in the state, indexed like transitions
+        private final long[] outputs;
+        private final int[] lengths;
+
+        private VariantAutomaton(int[] byteClasses, int[] transitions,
+                                 long[] outputs, int[] lengths) {
+            this.byteClasses = byteClasses;
+            this.transitions = transitions;
+            this.outputs = outputs;
+            this.lengths = lengths;
+        }
+
+        /**
+         * Returns null if any pattern has a form not handled here, in which
+         * case the patterns have to be matched one by one.
+         */
+        static VariantAutomaton of(List<String> patterns) {
+            if (patterns.size() > Long.SIZE) {
+                return null;
+            }
+            var parsed = new ArrayList<List<List<FusedSubstitution.Atom>>>();
+            var lengths = new int[patterns.size()];
+            for (var pattern = 0; pattern < patterns.size(); pattern++) {
+                var alternatives = FusedSubstitution.parseAlternatives(
+                        patterns.get(pattern));
+                if (alternatives == null) {
+                    return null;
+                }
+                lengths[pattern] = alternatives.getFirst().size();
+                for (var atoms : alternatives) {
+                    if (atoms.isEmpty() || atoms.size() != lengths[pattern] ||
+                            atoms.stream().anyMatch(
+                                    FusedSubstitution.Atom::repeated)) {
+                        return null;
+                    }
+                }
+                parsed.add(alternatives);
+            }
+
+            // bytes that belong to exactly the same sets are interchangeable,
+            // so the automaton works on such classes of bytes; bytes that no
+            // set contains end up in class 0
+            var sets = parsed.stream()
+                    .flatMap(List::stream).flatMap(List::stream)
+                    .map(FusedSubstitution.Atom::bytes).toList();
+            var classesBySets = new HashMap<BitSet, Integer>();
+            classesBySets.put(new BitSet(), 0);
+            var representatives = new ArrayList<>(List.of(-1));
+            var byteClasses = new int[256];
+            for (var b = 0; b < 256; b++) {
+                var containing = new BitSet();
+                for (var set = 0; set < sets.size(); set++) {
+                    if (sets.get(set)[b]) {
+                        containing.set(set);
+                    }
+                }
+                var byteClass = classesBySets.get(containing);
+                if (byteClass == null) {
+                    byteClass = representatives.size();
+                    classesBySets.put(containing, byteClass);
+                    representatives.add(b);
+                }
+                byteClasses[b] = byteClass;
+            }
+            var classCount = representatives.size();
+
+            var literals = new ArrayList<int[]>();
+            var literalPatterns = new ArrayList<Integer>();
+            for (var pattern = 0; pattern < parsed.size(); pattern++) {
+                for (var atoms : parsed.get(pattern)) {
+                    var expanded = List.of(new int[atoms.size()]);
+                    for (var position = 0; position < atoms.size();
+                         position++) {
+                        var next = new ArrayList<int[]>();
+                        for (var prefix : expanded) {
+                            for (var byteClass = 1; byteClass < classCount;
+                                 byteClass++) {
+                                if (atoms.get(position).bytes()[
+                                        representatives.get(byteClass)]) {
+                                    var literal = prefix.clone();
+                                    literal[position] = byteClass;
+                                    next.add(literal);
+                                }
+                            }
+                        }
+                        if (literals.size() + next.size() > MAX_LITERALS) {
+                            return null;
+                        }
+                        expanded = next;
+                    }
+                    for (var literal : expanded) {
+                        literals.add(literal);
+                        literalPatterns.add(pattern);
+                    }
+                }
+            }
+
+            // trie of the literals, -1 standing for no edge yet
+            var edges = new ArrayList<int[]>();
+            var stateOutputs = new ArrayList<Long>();
+            edges.add(newRow(classCount));
+            stateOutputs.add(0L);
+            for (var i = 0; i < literals.size(); i++) {
+                var state = 0;
+                for (var byteClass : literals.get(i)) {
+                    if (edges.get(state)[byteClass] < 0) {
+                        edges.get(state)[byteClass] = edges.size();
+                        edges.add(newRow(classCount));
+                        stateOutputs.add(0L);
+                    }
+                    state = edges.get(state)[byteClass];
+                }
+                stateOutputs.set(state, stateOutputs.get(state) |
+                        1L << literalPatterns.get(i));
+            }
+
+            // breadth first, so the failure state is always complete already
+            var states = edges.size();
+            var transitions = new int[states * classCount];
+            var outputs = new long[states * classCount];
+            var failures = new int[states];
+            var queue = new ArrayDeque<Integer>();
+            for (var byteClass = 0; byteClass < classCount; byteClass++) {
+                var child = edges.getFirst()[byteClass];
+                if (child >= 0) {
+                    failures[child] = 0;
+                    queue.add(child);
+                }
+                transitions[byteClass] = Math.max(child, 0) * classCount;
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                outputs[state * classCount] = stateOutputs.get(state) |
+                        outputs[failures[state] * classCount];
+                for (var byteClass = 0; byteClass < classCount; byteClass++) {
+                    var child = edges.get(state)[byteClass];
+                    var fallback = transitions[
+                            failures[state] * classCount + byteClass];
+                    if (child >= 0) {
+                        failures[child] = fallback / classCount;
+                        queue.add(child);
+                        transitions[state * classCount + byteClass] =
+                                child * classCount;
+                    } else {
+                        transitions[state * classCount + byteClass] = fallback;
+                    }
+                }
+            }
+            return new VariantAutomaton(
+                    byteClasses, transitions, outputs, lengths);
+        }
+
+        private static int[] newRow(int classCount) {
+            var row = new int[classCount];
+            Arrays.fill(row, -1);
+            return row;
+        }
+
+        long[] count(MemorySegment input, long length) {
+            var counts = new long[lengths.length];
+            // end of the last counted match of every pattern
+            var lastEnds = new long[lengths.length];
+            var chunk = new byte[CHUNK_SIZE];
+            var state = 0;
+            for (var offset = 0L; offset < length; offset += CHUNK_SIZE) {
+                var count = (int) Math.min(CHUNK_SIZE, length - offset);
+                MemorySegment.copy(input, JAVA_BYTE, offset, chunk, 0, count);
+                for (var i = 0; i < count; i++) {
+                    state = transitions[state + byteClasses[chunk[i] & 0xff]];
+                    var matched = outputs[state];
+                    while (matched != 0) {
+                        var pattern = Long.numberOfTrailingZeros(matched);
+                        var end = offset + i + 1;
+                        if (end - lengths[pattern] >= lastEnds[pattern]) {
+                            counts[pattern]++;
+                            lastEnds[pattern] = end;
+                        }
+                        matched &= matched - 1;
+                    }
+                }
+            }
+            return counts;
+        }
+    }
+
+    private record Input(long rawLength,
+                         MemorySegment sequence, long sequenceLength) {
+    }
+
+    /**
+     * Reads the FASTA input in fixed-size chunks and strips header lines and
+     * newlines on the fly. Only one chunk of raw input is held at a time. The
+     * cleaned sequence is sized up front when the input is a regular file and
+     * grown by doubling otherwise.
+     */
+    private static Input ingest(FileChannel channel, int chunkSize)
+            throws IOException {
+        var chunk = ByteBuffer.allocateDirect(chunkSize);
+        var window = MemorySegment.ofBuffer(chunk);
+        var builder = new SequenceBuilder(
+                Math.max(remainingSize(channel), chunkSize));
+        int read;
+        while ((read = channel.read(chunk.clear())) >= 0) {
+            builder.append(window, read);
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Maps the whole input file and strips header lines and newlines directly
+     * from the mapping, so the raw input is never copied. The mapping is
+     * released as soon as the cleaned sequence is ready.
+     */
+    private static Input ingestMapped(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ);
+             var arena = Arena.ofConfined()) {
+            var size = channel.size();
+            var mapping = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size, arena);
+            var builder = new SequenceBuilder(size);
+            builder.append(mapping, size);
+            return builder.finish();
+        }
+    }
+
+    private static long remainingSize(FileChannel channel) {
+        try {
+            return Math.max(channel.size() - channel.position(), 0);
+        } catch (IOException e) {
+            // pipes have neither size nor position
+            return 0;
+        }
+    }
+
+    /**
+     * Accumulates the cleaned sequence in native memory. It has the same
+     * effect as substituting {@code ">.*\n|\n"} with nothing over the whole
+     * input, but works on consecutive pieces of it.
+     */
+    private static final class SequenceBuilder {
+        private MemorySegment sequence;
+        private long sequenceLength;
+        private long rawLength;
+        // a header without a terminating newline doesn't match the pattern,
+        // so it is kept aside until its newline (or end of input) shows up
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private boolean inHeader;
+
+        SequenceBuilder(long capacity) {
+            sequence = Arena.ofAuto().allocate(capacity);
+        }
+
+        void append(MemorySegment window, long length) {
+            rawLength += length;
+            ensureCapacity(length);
+            var position = 0L;
+            while (position < length) {
+                var end = position;
+                if (inHeader) {
+                    while (end < length &&
+                            window.get(JAVA_BYTE, end) != '\n') {
+                        end++;
+                    }
+                    if (end < length) {
+                        header.reset();
+                        inHeader = false;
+                    } else {
+                        header.writeBytes(window.asSlice(position, end - position)
+                                .toArray(JAVA_BYTE));
+                    }
+                } else {
+                    byte b = 0;
+                    while (end < length &&
+                            (b = window.get(JAVA_BYTE, end)) != '\n' && b != '>') {
+                        end++;
+                    }
+                    MemorySegment.copy(window, position,
+                            sequence, sequenceLength, end - position);
+                    sequenceLength += end - position;
+                    if (end < length && b == '>') {
+                        header.write(b);
+                        inHeader = true;
+                    }
+                }
+                position = end + 1;
+            }
+        }
+
+        Input finish() {
+            if (inHeader) {
+                var unterminated = header.toByteArray();
+                ensureCapacity(unterminated.length);
+                MemorySegment.copy(unterminated, 0, sequence, JAVA_BYTE,
+                        sequenceLength, unterminated.length);
+                sequenceLength += unterminated.length;
+                inHeader = false;
+            }
+            return new Input(rawLength, sequence, sequenceLength);
+        }
+
+        private void ensureCapacity(long extraLength) {
+            if (sequence.byteSize() - sequenceLength < extraLength) {
+                var grown = Arena.ofAuto().allocate(Math.max(
+                        sequence.byteSize() * 2, sequenceLength + extraLength));
+                MemorySegment.copy(sequence, 0, grown, 0, sequenceLength);
+                sequence = grown;
+            }
+        }
     }
 
-    private static int substitute(
+    private static long substitute(
             MemorySegment compiledPattern,
-            MemorySegment inputBuffer, int inputLength,
-            MemorySegment matchContext,
-            MemorySegment outputBuffer, int outputBufferLength,
+            MemorySegment inputBuffer, long inputLength,
+            MemorySegment matchData, MemorySegment matchContext,
+            MemorySegment outputBuffer, long outputBufferLength,
             String replacement) {
         return withArena(arena -> {
             var replacementBytes =
@@ -133,13 +1305,13 @@ public class regexredux_panama_foreign {
             var substitutionResult = pcre2_h.pcre2_substitute_8(
                     compiledPattern,
                     inputBuffer, inputLength,
-                    0, options, pcre2_h.NULL(),
+                    0, options, matchData,
                     matchContext,
                     replacementBuffer, replacementBytes.length,
                     outputBuffer, outputLengthHolder);
             showPcre2ErrorIfAny("substitutionResult", substitutionResult);
             return substitutionResult < 0 ?
-                    0 : outputLengthHolder.getAtIndex(JAVA_INT, 0);
+                    0 : outputLengthHolder.getAtIndex(JAVA_LONG, 0);
         });
     }
 
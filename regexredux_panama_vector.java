@@ -0,0 +1,290 @@
+/*
+   The Computer Language Benchmarks Game
+   https://salsa.debian.org/benchmarksgame-team/benchmarksgame/
+
+   contributed by Francois Green
+*/
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+import static java.util.stream.Collectors.toMap;
+
+public class regexredux_panama_vector {
+
+    public static void main(String[] args) throws IOException {
+        var variantsVector = true;
+        for (var option : args) {
+            if (option.equals("--variants=vector")) {
+                variantsVector = true;
+            } else if (option.equals("--variants=regex")) {
+                variantsVector = false;
+            } else {
+                throw new IllegalArgumentException(
+                        "unknown option: " + option);
+            }
+        }
+
+        var baos = new ByteArrayOutputStream();
+        {
+            var buf = new byte[65536];
+            int count;
+            while ((count = System.in.read(buf)) > 0) {
+                baos.write(buf, 0, count);
+            }
+        }
+        final var input = baos.toString("US-ASCII");
+
+        final var initialLength = input.length();
+
+        final var sequence = input.replaceAll(">.*\n|\n", "");
+
+        var replacements = CompletableFuture.supplyAsync(() -> {
+            final Map<String, String> iub = new LinkedHashMap<>();
+            iub.put("tHa[Nt]", "<4>");
+            iub.put("aND|caN|Ha[DS]|WaS", "<3>");
+            iub.put("a[NSt]|BY", "<2>");
+            iub.put("<[^>]*>", "|");
+            iub.put("\\|[^|][^|]*\\|", "-");
+
+            var buffer = sequence;
+            for (var entry : iub.entrySet()) {
+                buffer = Pattern.compile(entry.getKey()).matcher(buffer)
+                        .replaceAll(entry.getValue());
+            }
+            return buffer;
+        });
+
+        final var codeLength = sequence.length();
+
+        final var variants = Arrays.asList("agggtaaa|tttaccct",
+                "[cgt]gggtaaa|tttaccc[acg]",
+                "a[act]ggtaaa|tttacc[agt]t",
+                "ag[act]gtaaa|tttac[agt]ct",
+                "agg[act]taaa|ttta[agt]cct",
+                "aggg[acg]aaa|ttt[cgt]ccct",
+                "agggt[cgt]aa|tt[acg]accct",
+                "agggta[cgt]a|t[acg]taccct",
+                "agggtaa[cgt]|[acg]ttaccct");
+
+        var prefilter = variantsVector ? VariantPrefilter.of(variants) : null;
+        final Map<String, Long> results;
+        if (prefilter != null) {
+            var counts = prefilter.count(
+                    sequence.getBytes(StandardCharsets.US_ASCII), sequence);
+            results = new HashMap<>();
+            for (var i = 0; i < variants.size(); i++) {
+                results.put(variants.get(i), counts[i]);
+            }
+        } else {
+            BiFunction<String, String, Entry<String, Long>> counts =
+                    (v, s) -> {
+                        //Off by one
+                        Long count = Pattern.compile(v).splitAsStream(s)
+                                .count() - 1;
+                        return new AbstractMap.SimpleEntry<>(v, count);
+                    };
+
+            results = variants.parallelStream()
+                    .map(variant -> counts.apply(variant, sequence))
+                    .collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
+        }
+
+        variants.forEach(variant ->
+                System.out.println(variant + " " + results.get(variant)));
+
+        System.out.println();
+        System.out.println(initialLength);
+        System.out.println(codeLength);
+        System.out.println(replacements.join().length());
+    }
+
+    /**
+     * Counts the matches of several patterns, running the regex only at the
+     * positions where a match can start. Those positions are found with
+     * vectors, comparing a whole vector of starts at once with the literal
+     * bytes every alternative has at fixed offsets from its start, e.g. 7 of
+     * the 8 bytes of {@code a[act]ggtaaa}. Only a start that has all the
+     * literals of some alternative is checked with {@code lookingAt}, which
+     * in random DNA is about one start in a thousand for the variants.
+     */
+    private static final class VariantPrefilter {
+        // at most 64 lanes, so that a mask fits in a long
+        private static final VectorSpecies<Byte> SPECIES =
+                ByteVector.SPECIES_PREFERRED.length() <= Long.SIZE ?
+                        ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_512;
+
+        private static final int LANES = SPECIES.length();
+
+        private static final long LANES_MASK =
+                LANES == Long.SIZE ? -1L : (1L << LANES) - 1;
+
+        private final List<Pattern> patterns;
+        // distinct (offset, byte) pairs compared, anchors refer to them by
+        // index
+        private final int[] anchorOffsets;
+        private final byte[] anchorBytes;
+        // anchor indices of every alternative of every pattern
+        private final int[][][] alternatives;
+        private final int maxOffset;
+
+        private VariantPrefilter(List<Pattern> patterns, int[] anchorOffsets,
+                                 byte[] anchorBytes, int[][][] alternatives) {
+            this.patterns = patterns;
+            this.anchorOffsets = anchorOffsets;
+            this.anchorBytes = anchorBytes;
+            this.alternatives = alternatives;
+            this.maxOffset = Arrays.stream(anchorOffsets).max().orElse(0);
+        }
+
+        /**
+         * Returns null if any pattern is more than an alternation of letters,
+         * digits and classes of them, in which case the patterns have to be
+         * matched by scanning the whole sequence.
+         */
+        static VariantPrefilter of(List<String> patterns) {
+            var anchors = new LinkedHashMap<Integer, Integer>();
+            var alternatives = new int[patterns.size()][][];
+            for (var pattern = 0; pattern < patterns.size(); pattern++) {
+                var parsed = parseAlternatives(patterns.get(pattern));
+                if (parsed == null) {
+                    return null;
+                }
+                alternatives[pattern] = new int[parsed.size()][];
+                for (var alternative = 0; alternative < parsed.size();
+                     alternative++) {
+                    var bytes = parsed.get(alternative);
+                    var used = new ArrayList<Integer>();
+                    for (var offset = 0; offset < bytes.length; offset++) {
+                        if (bytes[offset] >= 0) {
+                            // offset and byte packed as one key
+                            used.add(anchors.computeIfAbsent(
+                                    offset << 8 | bytes[offset],
+                                    key -> anchors.size()));
+                        }
+                    }
+                    alternatives[pattern][alternative] =
+                            used.stream().mapToInt(Integer::intValue).toArray();
+                }
+            }
+            var anchorOffsets = new int[anchors.size()];
+            var anchorBytes = new byte[anchors.size()];
+            anchors.forEach((key, anchor) -> {
+                anchorOffsets[anchor] = key >>> 8;
+                anchorBytes[anchor] = (byte) key.intValue();
+            });
+            return new VariantPrefilter(
+                    patterns.stream().map(Pattern::compile).toList(),
+                    anchorOffsets, anchorBytes, alternatives);
+        }
+
+        /**
+         * Returns the bytes of every alternative, with -1 for a character
+         * class, or null for any other syntax or an empty alternative.
+         */
+        private static List<int[]> parseAlternatives(String pattern) {
+            var alternatives = new ArrayList<int[]>();
+            var bytes = new ArrayList<Integer>();
+            for (var i = 0; i <= pattern.length(); i++) {
+                if (i == pattern.length() || pattern.charAt(i) == '|') {
+                    if (bytes.isEmpty()) {
+                        return null;
+                    }
+                    alternatives.add(bytes.stream()
+                            .mapToInt(Integer::intValue).toArray());
+                    bytes.clear();
+                } else if (pattern.charAt(i) == '[') {
+                    var end = pattern.indexOf(']', i);
+                    if (end < i + 2 || !pattern.substring(i + 1, end).chars()
+                            .allMatch(VariantPrefilter::isPlain)) {
+                        return null;
+                    }
+                    bytes.add(-1);
+                    i = end;
+                } else if (isPlain(pattern.charAt(i))) {
+                    bytes.add((int) pattern.charAt(i));
+                } else {
+                    return null;
+                }
+            }
+            return alternatives;
+        }
+
+        // ASCII letters and digits are never regex syntax
+        private static boolean isPlain(int c) {
+            return c < 128 && Character.isLetterOrDigit(c);
+        }
+
+        long[] count(byte[] input, CharSequence sequence) {
+            var length = input.length;
+            var counts = new long[patterns.size()];
+            // end of the last counted match of every pattern
+            var lastEnds = new int[patterns.size()];
+            var matchers = patterns.stream()
+                    .map(pattern -> pattern.matcher(sequence)).toList();
+            var anchorMasks = new long[anchorOffsets.length];
+            var start = 0;
+            for (; start + maxOffset + LANES <= length; start += LANES) {
+                for (var anchor = 0; anchor < anchorOffsets.length; anchor++) {
+                    anchorMasks[anchor] = ByteVector.fromArray(SPECIES, input,
+                                    start + anchorOffsets[anchor])
+                            .eq(anchorBytes[anchor]).toLong();
+                }
+                for (var pattern = 0; pattern < alternatives.length;
+                     pattern++) {
+                    var candidates = 0L;
+                    for (var alternative : alternatives[pattern]) {
+                        var mask = LANES_MASK;
+                        for (var anchor : alternative) {
+                            mask &= anchorMasks[anchor];
+                        }
+                        candidates |= mask;
+                    }
+                    while (candidates != 0) {
+                        var candidate =
+                                start + Long.numberOfTrailingZeros(candidates);
+                        if (candidate >= lastEnds[pattern]) {
+                            var matcher = matchers.get(pattern)
+                                    .region(candidate, length);
+                            if (matcher.lookingAt()) {
+                                counts[pattern]++;
+                                lastEnds[pattern] = matcher.end();
+                            }
+                        }
+                        candidates &= candidates - 1;
+                    }
+                }
+            }
+            // too close to the end for a vector load at every anchor offset,
+            // so every remaining start is a candidate
+            for (var pattern = 0; pattern < alternatives.length; pattern++) {
+                var matcher = matchers.get(pattern);
+                for (var candidate = Math.max(start, lastEnds[pattern]);
+                     candidate < length; ) {
+                    if (matcher.region(candidate, length).lookingAt()) {
+                        counts[pattern]++;
+                        candidate = matcher.end();
+                    } else {
+                        candidate++;
+                    }
+                }
+            }
+            return counts;
+        }
+    }
+}